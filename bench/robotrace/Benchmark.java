@@ -0,0 +1,134 @@
+package robotrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal micro benchmark harness, after the manner of JMH.
+ *
+ * A benchmark body performs a batch of operations and returns a value
+ * derived from their results, which is consumed so that the JIT cannot
+ * remove the work. The batch size is calibrated so that one iteration takes
+ * about {@link #ITERATION_NANOS}; after the warmup iterations, the time per
+ * operation of every measurement iteration is recorded and reported as
+ * mean and standard deviation.
+ *
+ * Like JMH, every benchmark runs in a fresh JVM, so that the profile the
+ * JIT gathered for one benchmark does not slow down the next one.
+ */
+class Benchmark {
+
+    /** Target duration of one iteration. */
+    private final static long ITERATION_NANOS = 100000000L;
+
+    /** Number of warmup and measurement iterations. */
+    private final static int WARMUP_ITERATIONS = 5;
+    private final static int MEASUREMENT_ITERATIONS = 10;
+
+    /** Body of a benchmark. */
+    interface Body {
+
+        /**
+         * Runs the given number of operations and returns a value depending
+         * on all of their results.
+         */
+        double run(int operations);
+    }
+
+    /** Sink of the values returned by benchmark bodies. */
+    private static volatile double sink;
+
+    /** Registered benchmarks, in order. */
+    private final static List<String> names = new ArrayList<>();
+    private final static List<Body> bodies = new ArrayList<>();
+
+    /**
+     * Registers a benchmark with the given name and body.
+     */
+    public static void add(String name, Body body) {
+        names.add(name);
+        bodies.add(body);
+    }
+
+    /**
+     * Runs the registered benchmarks whose name contains the given filter,
+     * each in a JVM of its own. Within such a JVM the system property
+     * benchmark.name selects the benchmark to measure.
+     */
+    public static void runAll(String filter, Class<?> main) throws IOException, InterruptedException {
+        String only = System.getProperty("benchmark.name");
+        if (only != null) {
+            int index = names.indexOf(only);
+            if (index == -1) {
+                throw new IllegalArgumentException("No benchmark named " + only
+                        + ", available: " + String.join(", ", names));
+            }
+            measure(only, bodies.get(index));
+            return;
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (String name : names) {
+            if (!name.contains(filter)) {
+                continue;
+            }
+            Process process = new ProcessBuilder(java,
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dbenchmark.name=" + name,
+                    main.getName())
+                    .inheritIO()
+                    .start();
+            if (process.waitFor() != 0) {
+                System.err.println("Benchmark " + name + " failed");
+            }
+        }
+    }
+
+    /**
+     * Measures the given body and prints the time per operation.
+     */
+    private static void measure(String name, Body body) {
+        // Double the batch until an iteration takes long enough to time.
+        int operations = 1;
+        long elapsed = 0;
+        while (operations < (1 << 30)) {
+            long start = System.nanoTime();
+            sink += body.run(operations);
+            elapsed = System.nanoTime() - start;
+            if (elapsed > ITERATION_NANOS / 10) {
+                break;
+            }
+            operations *= 2;
+        }
+        operations = (int) Math.max(1, Math.min(1 << 30,
+                (double) operations * ITERATION_NANOS / Math.max(1, elapsed)));
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += body.run(operations);
+        }
+
+        double[] nanosPerOperation = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += body.run(operations);
+            nanosPerOperation[i] = (double) (System.nanoTime() - start) / operations;
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOperation) {
+            mean += value;
+        }
+        mean /= MEASUREMENT_ITERATIONS;
+        double variance = 0;
+        for (double value : nanosPerOperation) {
+            variance += (value - mean) * (value - mean);
+        }
+        double deviation = Math.sqrt(variance / (MEASUREMENT_ITERATIONS - 1));
+
+        System.out.println(String.format(Locale.ROOT, "%-60s %14.3f +- %10.3f ns/op",
+                name, mean, deviation));
+    }
+}
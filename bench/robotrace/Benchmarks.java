@@ -0,0 +1,228 @@
+package robotrace;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of the track geometry, race simulation and vector arithmetic
+ * hot paths. These are pure CPU code and run without a GL context.
+ *
+ * Build and run from the project directory with
+ *
+ *   ant bench [-Dbench.filter=filter]
+ *
+ * or by hand, after building the project into build/classes (the JOGL
+ * classes are only needed for linking):
+ *
+ *   CP=build/classes:lib/RobotRaceLibrary.jar:lib/jogl-all.jar:lib/gluegen-rt.jar
+ *   javac -cp $CP -d build/bench/classes bench/robotrace/*.java
+ *   java -cp build/bench/classes:$CP robotrace.Benchmarks [filter]
+ *
+ * Only benchmarks whose name contains the optional filter are run.
+ */
+class Benchmarks {
+
+    /** Robot counts the simulation is benchmarked with. */
+    private final static int[] ROBOTS = {4, 64, 1024};
+
+    /** Tessellation intervals the track sampling is benchmarked with. */
+    private final static float[] INTERVALS = {1f / 100, 1f / 500, 1f / 2000};
+
+    public static void main(String[] args) throws Exception {
+        RaceTrack[] tracks = {new ParametricTrack(), createBezierTrack()};
+        for (RaceTrack track : tracks) {
+            benchmarkTrack(track);
+        }
+        for (RaceTrack track : tracks) {
+            for (float interval : INTERVALS) {
+                benchmarkTessellation(track, interval);
+            }
+        }
+        for (int robots : ROBOTS) {
+            benchmarkSimulation(tracks[1], robots);
+        }
+        benchmarkVector();
+
+        Benchmark.runAll(args.length > 0 ? args[0] : "", Benchmarks.class);
+    }
+
+    /**
+     * Closed Bezier track of four segments, approximating an ellipse with
+     * radii 15 and 12.
+     */
+    static BezierTrack createBezierTrack() {
+        double k = 0.5523;
+        double a = 15;
+        double b = 12;
+        return new BezierTrack(new Vector[] {
+            new Vector(a, 0, 1), new Vector(a, k * b, 1), new Vector(k * a, b, 1), new Vector(0, b, 1),
+            new Vector(0, b, 1), new Vector(-k * a, b, 1), new Vector(-a, k * b, 1), new Vector(-a, 0, 1),
+            new Vector(-a, 0, 1), new Vector(-a, -k * b, 1), new Vector(-k * a, -b, 1), new Vector(0, -b, 1),
+            new Vector(0, -b, 1), new Vector(k * a, -b, 1), new Vector(a, -k * b, 1), new Vector(a, 0, 1)
+        });
+    }
+
+    /**
+     * Single lookups on a track, at a parameter or distance moving along
+     * the track with every operation.
+     */
+    private static void benchmarkTrack(RaceTrack track) {
+        String name = track.getClass().getSimpleName();
+        double length = track.getLength();
+
+        Benchmark.add(name + ".getPoint", operations -> {
+            Vec3 out = new Vec3();
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                track.getPoint((i & 1023) / 1024.0, out);
+                sum += out.x;
+            }
+            return sum;
+        });
+        Benchmark.add(name + ".getTangent", operations -> {
+            Vec3 out = new Vec3();
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                track.getTangent((i & 1023) / 1024.0, out);
+                sum += out.x;
+            }
+            return sum;
+        });
+        Benchmark.add(name + ".getLanePoint", operations -> {
+            Vec3 out = new Vec3();
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                track.getLanePoint(i & 3, (i & 1023) / 1024.0, out);
+                sum += out.x;
+            }
+            return sum;
+        });
+        Benchmark.add(name + ".getLaneTangent", operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += track.getLaneTangent(i & 3, (i & 1023) / 1024.0).x();
+            }
+            return sum;
+        });
+        Benchmark.add(name + ".getLanePointAtDistance", operations -> {
+            Vec3 out = new Vec3();
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                track.getLanePointAtDistance(i & 3, (i & 1023) * length / 1024, out);
+                sum += out.x;
+            }
+            return sum;
+        });
+        Benchmark.add(name + ".getLaneTangentAtDistance", operations -> {
+            Vec3 out = new Vec3();
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                track.getLaneTangentAtDistance(i & 3, (i & 1023) * length / 1024, out);
+                sum += out.x;
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Sampling of the points and tangent normals of a whole track at the
+     * given interval, as done when tessellating the track mesh. One
+     * operation is one complete track.
+     */
+    private static void benchmarkTessellation(RaceTrack track, float interval) {
+        int steps = Math.round(1f / interval);
+        Benchmark.add(track.getClass().getSimpleName() + ".tessellate steps=" + steps, operations -> {
+            Vec3 P = new Vec3();
+            Vec3 T = new Vec3();
+            double sum = 0;
+            for (int operation = 0; operation < operations; operation++) {
+                for (int i = 0; i <= steps; i++) {
+                    double t = (double) i / steps;
+                    track.getPoint(t, P);
+                    track.getTangent(t, T);
+                    double l = Math.sqrt(T.x * T.x + T.y * T.y);
+                    sum += P.x + T.x / l;
+                }
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * One step of the race with lane change resolution, with robots
+     * spread over the track and its lanes.
+     */
+    private static void benchmarkSimulation(RaceTrack track, int robots) {
+        Random random = new Random(42);
+        double length = track.getLength();
+        double[] speeds = new double[robots];
+        int[] lanes = new int[robots];
+        for (int i = 0; i < robots; i++) {
+            speeds[i] = length * (0.01 + 0.2 * random.nextDouble());
+            lanes[i] = random.nextInt(RaceSimulation.LANES);
+        }
+        RaceSimulation simulation = new RaceSimulation(track, speeds, lanes);
+
+        Benchmark.add("RaceSimulation.step robots=" + robots, operations -> {
+            for (int i = 0; i < operations; i++) {
+                simulation.step(1.0 / SimulationLoop.TICK_RATE);
+            }
+            return simulation.getDistance(0) + simulation.getLane(robots - 1);
+        });
+    }
+
+    /**
+     * Arithmetic on immutable vectors, and in place on mutable ones.
+     */
+    private static void benchmarkVector() {
+        Vector a = new Vector(1, 2, 3);
+        Vector b = new Vector(-3, 0.5, 2);
+        // Crossing with a unit axis only turns a vector about it, so
+        // repeated products neither overflow nor underflow.
+        Vector axis = b.normalized();
+
+        Benchmark.add("Vector.add", operations -> {
+            Vector v = a;
+            for (int i = 0; i < operations; i++) {
+                v = v.add(b);
+            }
+            return v.x();
+        });
+        Benchmark.add("Vector.scale", operations -> {
+            Vector v = a;
+            for (int i = 0; i < operations; i++) {
+                v = v.scale(-1);
+            }
+            return v.x();
+        });
+        Benchmark.add("Vector.cross", operations -> {
+            Vector v = a;
+            for (int i = 0; i < operations; i++) {
+                v = v.cross(axis);
+            }
+            return v.x();
+        });
+        Benchmark.add("Vector.normalized", operations -> {
+            Vector v = a;
+            for (int i = 0; i < operations; i++) {
+                v = v.add(b).normalized();
+            }
+            return v.x();
+        });
+        Benchmark.add("Vec3.normalize", operations -> {
+            Vec3 v = new Vec3(a);
+            Vec3 w = new Vec3(b);
+            for (int i = 0; i < operations; i++) {
+                v.add(w).normalize();
+            }
+            return v.x;
+        });
+        Benchmark.add("Vec3.cross", operations -> {
+            Vec3 v = new Vec3(a);
+            Vec3 w = new Vec3(axis);
+            for (int i = 0; i < operations; i++) {
+                v.cross(v, w);
+            }
+            return v.x;
+        });
+    }
+}
@@ -0,0 +1,129 @@
+package robotrace;
+
+/**
+ * Arc length parameterization of a race track.
+ *
+ * The curve is measured once with a fine polyline and then resampled at
+ * equal distances along the track. Points and tangents at a distance are
+ * found by an O(1) lookup with linear interpolation between two samples,
+ * which is allocation free and gives robots a constant speed regardless
+ * of how the curve parameter is spread over the segments.
+ */
+class ArcLengthTable {
+
+    /** Number of polyline pieces used per table sample to measure the curve. */
+    private final static int OVERSAMPLING = 16;
+
+    /** Number of equal distance intervals in the table. */
+    private final int samples;
+
+    /** Total length of the track. */
+    private final double length;
+
+    /** Distance between two consecutive samples. */
+    private final double step;
+
+    /** Points and unit tangents at equal distances, samples + 1 entries each. */
+    private final double[] px, py, pz;
+    private final double[] tx, ty, tz;
+
+    /**
+     * Measures the given track and builds a table with the given number of
+     * equal distance intervals.
+     */
+    ArcLengthTable(RaceTrack track, int samples) {
+        this.samples = samples;
+
+        // Measure the cumulative length of a fine polyline through the curve.
+        int pieces = samples * OVERSAMPLING;
+        double[] distance = new double[pieces + 1];
+        Vec3 previous = new Vec3();
+        Vec3 current = new Vec3();
+        track.getPoint(0, previous);
+        for (int i = 1; i <= pieces; i++) {
+            track.getPoint((double) i / pieces, current);
+            distance[i] = distance[i - 1] + previous.subtract(current).length();
+            previous.set(current);
+        }
+        length = distance[pieces];
+        step = length / samples;
+
+        px = new double[samples + 1];
+        py = new double[samples + 1];
+        pz = new double[samples + 1];
+        tx = new double[samples + 1];
+        ty = new double[samples + 1];
+        tz = new double[samples + 1];
+
+        // Resample the curve at equal distances, inverting the cumulative
+        // length by binary search.
+        Vec3 P = new Vec3();
+        Vec3 T = new Vec3();
+        for (int k = 0; k <= samples; k++) {
+            double target = k * step;
+            int lo = 0;
+            int hi = pieces;
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (distance[mid] <= target) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            double span = distance[hi] - distance[lo];
+            double f = span > 0 ? (target - distance[lo]) / span : 0;
+            double t = (lo + f) / pieces;
+
+            track.getPoint(t, P);
+            track.getTangent(t, T);
+            px[k] = P.x;
+            py[k] = P.y;
+            pz[k] = P.z;
+            tx[k] = T.x;
+            ty[k] = T.y;
+            tz[k] = T.z;
+        }
+    }
+
+    /**
+     * Returns the total length of the track.
+     */
+    public double getLength() {
+        return length;
+    }
+
+    /**
+     * Writes the point at the given distance along the track into out.
+     * Distances wrap around, so any value is allowed.
+     */
+    public void getPoint(double distance, Vec3 out) {
+        double u = wrap(distance) / step;
+        int i = Math.min((int) u, samples - 1);
+        double f = u - i;
+        out.set(px[i] + (px[i + 1] - px[i]) * f,
+                py[i] + (py[i + 1] - py[i]) * f,
+                pz[i] + (pz[i + 1] - pz[i]) * f);
+    }
+
+    /**
+     * Writes the unit tangent at the given distance along the track into
+     * out. Distances wrap around, so any value is allowed.
+     */
+    public void getTangent(double distance, Vec3 out) {
+        double u = wrap(distance) / step;
+        int i = Math.min((int) u, samples - 1);
+        double f = u - i;
+        out.set(tx[i] + (tx[i + 1] - tx[i]) * f,
+                ty[i] + (ty[i + 1] - ty[i]) * f,
+                tz[i] + (tz[i + 1] - tz[i]) * f).normalize();
+    }
+
+    /**
+     * Maps a distance onto [0, length).
+     */
+    private double wrap(double distance) {
+        double d = distance % length;
+        return d < 0 ? d + length : d;
+    }
+}
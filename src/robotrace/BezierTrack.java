@@ -18,7 +18,7 @@ public class BezierTrack extends RaceTrack {
     }
         
     @Override
-    protected Vector getPoint(double t) {
+    protected void getPoint(double t, Vec3 out) {
         t = t % 1;
         int segment = (int)Math.floor(t/segmentLength);
         t = (t - segment * segmentLength) / segmentLength;
@@ -29,14 +29,18 @@ public class BezierTrack extends RaceTrack {
         Vector P3 = controlPoints[4 * segment + 3];
            
         // P(t) = (1 - t)^3 * P0 + 3t(1-t)^2 * P1 + 3t^2 (1-t) * P2 + t^3 * P3
-        return P0.scale(Math.pow(1 - t, 3))
-                .add(P1.scale(3 * t * Math.pow(1 - t, 2)))
-                .add(P2.scale(3 * Math.pow(t, 2) * (1 - t)))
-                .add(P3.scale(Math.pow(t, 3)));
+        double u = 1 - t;
+        double b0 = u * u * u;
+        double b1 = 3 * t * u * u;
+        double b2 = 3 * t * t * u;
+        double b3 = t * t * t;
+        out.set(b0 * P0.x + b1 * P1.x + b2 * P2.x + b3 * P3.x,
+                b0 * P0.y + b1 * P1.y + b2 * P2.y + b3 * P3.y,
+                b0 * P0.z + b1 * P1.z + b2 * P2.z + b3 * P3.z);
     }
 
     @Override
-    protected Vector getTangent(double t) {
+    protected void getTangent(double t, Vec3 out) {
         t = t % 1;
         int segment = (int)Math.floor(t/segmentLength);
         t = (t - segment * segmentLength) / segmentLength;
@@ -47,9 +51,13 @@ public class BezierTrack extends RaceTrack {
         Vector P3 = controlPoints[4 * segment + 3];
 
         // dP(t) / dt =  -3(1-t)^2 * P0 + 3(1-t)^2 * P1 - 6t(1-t) * P1 - 3t^2 * P2 + 6t(1-t) * P2 + 3t^2 * P3 
-        return P0.scale(-3 * Math.pow(1 - t, 2))
-            .add(P1.scale(3 * Math.pow(1 - t, 2) - 6 * t * (1 - t)))
-            .add(P2.scale(-3 * Math.pow(t, 2) + 6 * t * (1 - t)))
-            .add(P3.scale(3 * Math.pow(t, 2))).normalized();
+        double u = 1 - t;
+        double d0 = -3 * u * u;
+        double d1 = 3 * u * u - 6 * t * u;
+        double d2 = -3 * t * t + 6 * t * u;
+        double d3 = 3 * t * t;
+        out.set(d0 * P0.x + d1 * P1.x + d2 * P2.x + d3 * P3.x,
+                d0 * P0.y + d1 * P1.y + d2 * P2.y + d3 * P3.y,
+                d0 * P0.z + d1 * P1.z + d2 * P2.z + d3 * P3.z).normalize();
     }
 }
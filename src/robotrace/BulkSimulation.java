@@ -0,0 +1,213 @@
+package robotrace;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs many independent races without rendering, as fast as the cores
+ * allow, and gathers their outcomes in {@link RaceStatistics}.
+ *
+ * Every race runs the {@link RaceSimulation} of the live view at its tick
+ * rate until all robots have run the given number of laps. Robot i starts
+ * in lane i and runs at the speed of the live race, varied at random per
+ * race by up to the given fraction; the random numbers of a race depend
+ * only on the seed and its number, so results do not depend on the
+ * number of threads. Overtakes are passes on the track between robots
+ * still racing: the robots are kept sorted by their position around the
+ * track, and a robot moving up past another in that order has passed it,
+ * which costs linear time per tick rather than comparing all pairs. The
+ * races are split over a fork/join pool in halves down to batches of
+ * BATCH_SIZE, each batch filling its own statistics, which are merged on
+ * the way back.
+ *
+ * The track is shared by all races; the simulation only reads its length,
+ * which is computed before any race starts.
+ */
+class BulkSimulation {
+
+    /** Number of races run by a single task. */
+    private final static int BATCH_SIZE = 16;
+
+    /** Duration of one tick in seconds. */
+    private final static double TICK = 1.0 / SimulationLoop.TICK_RATE;
+
+    private final RaceTrack track;
+
+    /** Length of the track. */
+    private final double length;
+
+    /** Number of robots per race and laps to run. */
+    private final int count;
+    private final int laps;
+
+    /** Largest fraction by which a speed varies from race to race. */
+    private final double variation;
+
+    private final long seed;
+
+    /**
+     * Creates races of the given number of robots running the given number
+     * of laps on the given track, with speeds varying by up to the given
+     * fraction, less than one, from the given seed.
+     */
+    public BulkSimulation(RaceTrack track, int count, int laps, double variation, long seed) {
+        this.track = track;
+        this.length = track.getLength();
+        this.count = count;
+        this.laps = laps;
+        this.variation = Math.max(0, Math.min(0.9, variation));
+        this.seed = seed;
+    }
+
+    /**
+     * Runs the given number of races on the given number of threads and
+     * returns their statistics.
+     */
+    public RaceStatistics run(int races, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new Batch(0, races));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Races from one number up to another. */
+    private class Batch extends RecursiveTask<RaceStatistics> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        Batch(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected RaceStatistics compute() {
+            if (to - from <= BATCH_SIZE) {
+                RaceStatistics statistics = new RaceStatistics(count);
+                for (int race = from; race < to; race++) {
+                    simulate(race, statistics);
+                }
+                return statistics;
+            }
+            int middle = (from + to) >>> 1;
+            Batch first = new Batch(from, middle);
+            first.fork();
+            RaceStatistics second = new Batch(middle, to).compute();
+            RaceStatistics statistics = first.join();
+            statistics.merge(second);
+            return statistics;
+        }
+    }
+
+    /**
+     * Runs the race of the given number until every robot has finished and
+     * adds its outcome to the given statistics.
+     */
+    private void simulate(int race, RaceStatistics statistics) {
+        SplittableRandom random = new SplittableRandom(seed + race * 0x9e3779b97f4a7c15L);
+        double[] speeds = new double[count];
+        int[] lanes = new int[count];
+        for (int i = 0; i < count; i++) {
+            double factor = 1 + variation * (2 * random.nextDouble() - 1);
+            speeds[i] = 0.05 * (i + 0.2) * length * factor;
+            lanes[i] = i % RaceSimulation.LANES;
+        }
+        RaceSimulation simulation = new RaceSimulation(track, speeds, lanes);
+
+        // Robots by position on the track, furthest along the lap first,
+        // with the lap each robot is in and its position within that lap.
+        int[] order = new int[count];
+        int[] crossing = new int[count];
+        int[] lap = new int[count];
+        double[] position = new double[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        int[] finishOrder = new int[count];
+        double[] finishTime = new double[count];
+        boolean[] finished = new boolean[count];
+        int finishers = 0;
+
+        long ticks = 0;
+        while (finishers < count) {
+            simulation.step(TICK);
+            ticks++;
+
+            // Positions within the lap each robot was in, so that robots
+            // crossing the line end up at the top instead of wrapping.
+            for (int i = 0; i < count; i++) {
+                position[i] = simulation.getDistance(i) - lap[i] * length;
+            }
+            // Leaving the start line together is not overtaking.
+            boolean counting = ticks > 1;
+            sort(order, position, finished, counting ? statistics : null);
+
+            for (int robot = 0; robot < count; robot++) {
+                if (!finished[robot]) {
+                    statistics.addLaneTick(robot, simulation.getLane(robot));
+                }
+            }
+
+            // Robots finish in the order they reach the line within a tick.
+            int crossed = 0;
+            int finishing = finishers;
+            while (crossed < count && position[order[crossed]] >= length) {
+                int robot = order[crossed++];
+                lap[robot]++;
+                position[robot] -= length;
+                if (lap[robot] == laps) {
+                    finishTime[robot] = ticks * TICK;
+                    finishOrder[finishers++] = robot;
+                }
+            }
+
+            // Move the robots that crossed the line from the top to the
+            // bottom, which keeps their order around the track, and sort
+            // them among the robots just past the line.
+            if (crossed > 0) {
+                System.arraycopy(order, 0, crossing, 0, crossed);
+                System.arraycopy(order, crossed, order, 0, count - crossed);
+                System.arraycopy(crossing, 0, order, count - crossed, crossed);
+                sort(order, position, finished, counting ? statistics : null);
+            }
+
+            for (int i = finishing; i < finishers; i++) {
+                finished[finishOrder[i]] = true;
+            }
+        }
+        statistics.addRace(ticks * TICK, finishOrder, finishTime);
+    }
+
+    /**
+     * Insertion sort of the robots by position, furthest first, which is
+     * linear as the order barely changes between ticks. Every robot moved
+     * up past another has passed it on the track, and is counted in the
+     * given statistics, if any, while neither has finished.
+     */
+    private static void sort(int[] order, double[] position, boolean[] finished,
+                             RaceStatistics statistics) {
+        for (int a = 1; a < order.length; a++) {
+            int robot = order[a];
+            double p = position[robot];
+            int b = a - 1;
+            int passed = 0;
+            while (b >= 0 && position[order[b]] < p) {
+                if (!finished[order[b]]) {
+                    passed++;
+                }
+                order[b + 1] = order[b];
+                b--;
+            }
+            order[b + 1] = robot;
+            if (statistics != null && passed > 0 && !finished[robot]) {
+                statistics.addOvertakes(robot, passed);
+            }
+        }
+    }
+}
@@ -6,13 +6,13 @@ package robotrace;
 class Camera {
 
     /** The position of the camera. */
-    public Vector eye = new Vector(3f, 6f, 5f);
+    public final Vec3 eye = new Vec3(3f, 6f, 5f);
 
     /** The point to which the camera is looking. */
-    public Vector center = Vector.O;
+    public final Vec3 center = new Vec3(Vector.O);
 
     /** The up vector. */
-    public Vector up = Vector.Z;
+    public final Vec3 up = new Vec3(Vector.Z);
 
     /**
      * Updates the camera viewpoint and direction based on the
@@ -37,13 +37,13 @@ class Camera {
      * Computes eye, center, and up, based on the camera's default mode.
      */
     private void setDefaultMode(GlobalState gs) {
-        center = gs.cnt;
-        eye = new Vector(
+        center.set(gs.cnt);
+        eye.set(
             Math.cos(gs.theta) * Math.cos(gs.phi),
             Math.sin(gs.theta) * Math.cos(gs.phi),
             Math.sin(gs.phi)
         ).scale(gs.vDist).add(center);
-        up = Vector.Z;
+        up.set(Vector.Z);
     }
 
     /**
@@ -51,7 +51,16 @@ class Camera {
      * The camera should view from the perspective of the robot.
      */
     private void setFirstPersonMode(GlobalState gs, Robot focus) {
-        up = Vector.Z;
+        setFirstPersonMode(focus, gs.vDist);
+        gs.vDist = 10;
+    }
+
+    /**
+     * Views from the perspective of the given robot, looking the given
+     * distance ahead.
+     */
+    public void setFirstPersonMode(Robot focus, double distance) {
+        up.set(Vector.Z);
         
         // Since focus.position x and y are the center of the robot,
         // we can not place the camera at this position, or else we are 
@@ -59,16 +68,26 @@ class Camera {
         // direction to get a position just in front of the robot.
         // The robot's depth is 0.3, so we need to move at least 0.15000001
         // forward to be outside its body.
-        eye = focus.position.add(focus.direction.scale(0.151));
+        eye.set(focus.position).addScaled(focus.direction, 0.151);
         
         // The center we locate it further away based on viewing distance,
         // but depends on the same principle.
-        center = focus.position.add(focus.direction.scale(gs.vDist));
+        center.set(focus.position).addScaled(focus.direction, distance);
         
         // Since focus.position z is the bottom of the robot at the race track,
         // we want to reposition the eye and center around eye height.
         eye.z = center.z = 3.25;
+    }
 
-        gs.vDist = 10;
+    /**
+     * Follows the given robot from behind and above, looking the given
+     * distance ahead of it.
+     */
+    public void setChaseMode(Robot focus, double distance) {
+        up.set(Vector.Z);
+        eye.set(focus.position).addScaled(focus.direction, -0.6 * distance);
+        eye.z = 5;
+        center.set(focus.position).addScaled(focus.direction, 0.4 * distance);
+        center.z = 2;
     }
 }
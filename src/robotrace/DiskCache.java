@@ -0,0 +1,114 @@
+package robotrace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cache of derived data on disk, such as decoded textures and linked
+ * shader programs, so that later starts need not derive it again.
+ *
+ * Entries are files named by a key, normally a hash of everything the data
+ * was derived from. Caches live in subdirectories of the directory named
+ * by the system property robotrace.cache, by default .robotrace/cache in
+ * the home directory; setting that property to "none" disables them.
+ */
+class DiskCache {
+
+    /** Directory of the entries, null if disabled. */
+    private final File directory;
+
+    /**
+     * Creates the cache with the given name.
+     */
+    public DiskCache(String name) {
+        String cache = System.getProperty("robotrace.cache",
+                new File(new File(System.getProperty("user.home"), ".robotrace"), "cache").getPath());
+        directory = "none".equals(cache) ? null : new File(cache, name);
+    }
+
+    /**
+     * Returns the data of the given key, or null if it is not cached.
+     */
+    public byte[] read(String key) {
+        if (directory == null) {
+            return null;
+        }
+        File entry = new File(directory, key);
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(entry.toPath());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the data of the given key. The data is written to a temporary
+     * file first, so that concurrent starts never read a partly written
+     * entry. Failures are reported only, the cache is an optimization.
+     */
+    public void write(String key, byte[] data) {
+        if (directory == null) {
+            return;
+        }
+        File entry = new File(directory, key);
+        try {
+            Files.createDirectories(directory.toPath());
+            File temporary = File.createTempFile("entry", ".tmp", directory);
+            Files.write(temporary.toPath(), data);
+            Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println("Could not cache " + entry + ": " + ex);
+        }
+    }
+
+    /**
+     * Returns the SHA-1 of the given parts as hexadecimal digits. Every part
+     * is preceded by its length, so that different splits of the same
+     * bytes give different keys.
+     */
+    public static String hash(byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (byte[] part : parts) {
+                digest.update(Integer.toString(part.length).getBytes("UTF-8"));
+                digest.update((byte) ':');
+                digest.update(part);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b & 0xff));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Reads the given stream to its end and closes it.
+     */
+    public static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16384];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package robotrace;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Captures frames from the framebuffer bound for reading without stalling
+ * the GPU, and writes them to disk on a background thread.
+ *
+ * Every frame is read into the next pixel buffer object of a small ring.
+ * The read is asynchronous; the buffer is only mapped when it comes round
+ * again a few frames later, by which time the transfer has completed. The
+ * pixels are then copied into a pooled frame and handed to the encoder
+ * thread through a bounded queue.
+ *
+ * The target is either a directory, receiving one binary PPM image per
+ * frame, or a file ending in .raw, receiving all frames as one raw rgb24
+ * video stream (e.g. ffmpeg -f rawvideo -pix_fmt rgb24 -s WxH -i file).
+ * When recording live, frames are dropped rather than waiting for a busy
+ * encoder; otherwise capture blocks until a frame is free.
+ *
+ * An error writing a frame is kept and reported on close, while the
+ * encoder goes on taking frames from the queue, so capture never waits on
+ * an encoder that stopped writing.
+ */
+class FrameCapture {
+
+    /** Number of pixel buffer objects in the ring. */
+    private final static int RING_SIZE = 3;
+
+    /** Number of frames that may wait for the encoder. */
+    private final static int QUEUE_SIZE = 8;
+
+    /** Frame read back from the GPU. */
+    private static class Frame {
+        int index;
+        int width;
+        int height;
+        byte[] pixels;
+    }
+
+    /** Frame telling the encoder to stop. */
+    private final static Frame END = new Frame();
+
+    /** Where the frames are written. */
+    private final File target;
+
+    /** Whether frames are written to one raw video stream. */
+    private final boolean raw;
+
+    /** Whether to wait for a free frame instead of dropping the frame. */
+    private final boolean blocking;
+
+    /** Names of the pixel buffer objects. */
+    private final int[] bufferIDs = new int[RING_SIZE];
+
+    /** Frame number, width and height of the pixels pending in each buffer. */
+    private final int[] pendingIndex = new int[RING_SIZE];
+    private final int[] pendingWidth = new int[RING_SIZE];
+    private final int[] pendingHeight = new int[RING_SIZE];
+    private final boolean[] pending = new boolean[RING_SIZE];
+
+    /** Allocated size in bytes of each buffer. */
+    private final int[] bufferSize = new int[RING_SIZE];
+
+    /** Buffer the next frame is read into. */
+    private int head;
+
+    /** Number of frames captured and dropped so far. */
+    private int frames;
+    private int dropped;
+
+    /** Frames waiting for the encoder and frames free for reuse. */
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_SIZE + 1);
+    private final BlockingQueue<Frame> free = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    /** Thread writing the frames. */
+    private final Thread encoder;
+
+    /** Stream of the raw video, if any. */
+    private final OutputStream stream;
+
+    /** First error of the encoder thread, if any. */
+    private volatile IOException error;
+
+    /**
+     * Creates a capture writing to the given directory, or raw video file
+     * if its name ends in .raw. When blocking, no frame is ever dropped.
+     */
+    public FrameCapture(File target, boolean blocking) {
+        this.target = target;
+        this.raw = target.getName().endsWith(".raw");
+        this.blocking = blocking;
+        if (!raw && !target.isDirectory() && !target.mkdirs()) {
+            throw new RuntimeException("Cannot create directory " + target);
+        }
+        // Open the video here, so a bad target fails before any frame.
+        try {
+            stream = raw ? new BufferedOutputStream(new FileOutputStream(target), 1 << 20) : null;
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot write frames to " + target, ex);
+        }
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            free.add(new Frame());
+        }
+
+        encoder = new Thread(this::encode, "encoder");
+        encoder.setDaemon(true);
+        encoder.start();
+    }
+
+    /**
+     * Starts the asynchronous read of the given region of the framebuffer
+     * bound for reading, and passes the oldest pending frame on to the
+     * encoder.
+     */
+    public void capture(GL2 gl, int x, int y, int width, int height) {
+        if (bufferIDs[0] == 0) {
+            gl.glGenBuffers(RING_SIZE, bufferIDs, 0);
+        }
+
+        // The buffer at the head is the oldest, collect it before reuse.
+        collect(gl, head);
+
+        int size = width * height * 3;
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, bufferIDs[head]);
+        if (bufferSize[head] < size) {
+            gl.glBufferData(GL_PIXEL_PACK_BUFFER, size, null, GL_STREAM_READ);
+            bufferSize[head] = size;
+        }
+        gl.glPixelStorei(GL_PACK_ALIGNMENT, 1);
+        gl.glReadPixels(x, y, width, height, GL_RGB, GL_UNSIGNED_BYTE, 0);
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        pending[head] = true;
+        pendingIndex[head] = frames++;
+        pendingWidth[head] = width;
+        pendingHeight[head] = height;
+        head = (head + 1) % RING_SIZE;
+    }
+
+    /**
+     * Collects all pending frames, waits until the encoder has written
+     * them and releases the buffers.
+     */
+    public void finish(GL2 gl) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            collect(gl, (head + i) % RING_SIZE);
+        }
+        if (bufferIDs[0] != 0) {
+            gl.glDeleteBuffers(RING_SIZE, bufferIDs, 0);
+            bufferIDs[0] = 0;
+        }
+        close();
+    }
+
+    /**
+     * Waits until the encoder has written all queued frames, without
+     * collecting the frames still pending on the GPU. Without a GL context,
+     * such as from a shutdown hook, this is the only way to end a capture,
+     * and the last frames, up to RING_SIZE, are lost.
+     */
+    public void close() {
+        try {
+            queue.put(END);
+            encoder.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped > 0) {
+            System.err.format("Frame capture dropped %d of %d frames%n", dropped, frames);
+        }
+        if (error != null) {
+            throw new RuntimeException("Cannot write frames to " + target, error);
+        }
+    }
+
+    /**
+     * Maps the given buffer, if a frame is pending in it, and queues its
+     * pixels for the encoder.
+     */
+    private void collect(GL2 gl, int index) {
+        if (!pending[index]) {
+            return;
+        }
+        pending[index] = false;
+
+        Frame frame = blocking ? takeFree() : free.poll();
+        if (frame == null) {
+            dropped++;
+            return;
+        }
+        frame.index = pendingIndex[index];
+        frame.width = pendingWidth[index];
+        frame.height = pendingHeight[index];
+        int size = frame.width * frame.height * 3;
+        if (frame.pixels == null || frame.pixels.length < size) {
+            frame.pixels = new byte[size];
+        }
+
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, bufferIDs[index]);
+        ByteBuffer mapped = gl.glMapBuffer(GL_PIXEL_PACK_BUFFER, GL_READ_ONLY);
+        if (mapped != null) {
+            mapped.get(frame.pixels, 0, size);
+            gl.glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+        }
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        if (mapped == null) {
+            free.add(frame);
+            dropped++;
+        } else {
+            queue.add(frame);
+        }
+    }
+
+    /**
+     * Waits for a free frame, or returns null if the encoder thread has
+     * died and no frame will ever come free.
+     */
+    private Frame takeFree() {
+        try {
+            Frame frame = free.poll(100, TimeUnit.MILLISECONDS);
+            while (frame == null && encoder.isAlive()) {
+                frame = free.poll(100, TimeUnit.MILLISECONDS);
+            }
+            return frame == null ? free.poll() : frame;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Body of the encoder thread, writing frames until told to stop.
+     */
+    private void encode() {
+        try {
+            for (Frame frame = queue.take(); frame != END; frame = queue.take()) {
+                try {
+                    if (error == null) {
+                        write(frame);
+                    }
+                } catch (IOException ex) {
+                    error = ex;
+                } finally {
+                    free.add(frame);
+                }
+            }
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (IOException ex) {
+            error = ex;
+        } catch (InterruptedException ex) {
+            // Stop encoding.
+        }
+    }
+
+    /**
+     * Writes the given frame, flipping its rows since OpenGL returns them
+     * bottom to top.
+     */
+    private void write(Frame frame) throws IOException {
+        int stride = frame.width * 3;
+        if (raw) {
+            for (int y = frame.height - 1; y >= 0; y--) {
+                stream.write(frame.pixels, y * stride, stride);
+            }
+            return;
+        }
+
+        File file = new File(target, String.format("frame%05d.ppm", frame.index));
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            out.write(String.format("P6\n%d %d\n255\n", frame.width, frame.height).getBytes("US-ASCII"));
+            for (int y = frame.height - 1; y >= 0; y--) {
+                out.write(frame.pixels, y * stride, stride);
+            }
+        }
+    }
+}
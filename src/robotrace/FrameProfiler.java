@@ -0,0 +1,380 @@
+package robotrace;
+
+import com.jogamp.opengl.util.gl2.GLUT;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Measures where the time of a frame goes, per pass.
+ *
+ * Every pass is timed on the CPU and, if timer queries are supported, on
+ * the GPU with asynchronous GL_TIME_ELAPSED queries whose results are
+ * collected a few frames later without waiting. Passes may nest; the times
+ * and counts of a pass exclude those of the passes nested in it, since
+ * timer queries cannot nest. Draw calls and state changes are counted
+ * where they are issued, see {@link #countDrawCall()}.
+ *
+ * The last {@link #WINDOW} frames are kept to report percentiles in an
+ * overlay and in a JSON summary; every frame can also be written to CSV.
+ * The export is closed by a shutdown hook while the GL thread may still be
+ * measuring, so the measurements are only changed holding the lock of the
+ * profiler.
+ */
+class FrameProfiler {
+
+    /** Number of frames kept for percentiles. */
+    public final static int WINDOW = 240;
+
+    /** Percentiles shown and exported. */
+    private final static double[] PERCENTILES = {50, 95, 99};
+
+    /** Measurements of one pass over the window. */
+    private static class Pass {
+        final String name;
+        final double[] cpu = new double[WINDOW];
+        final double[] gpu = new double[WINDOW];
+        final int[] drawCalls = new int[WINDOW];
+        final int[] stateChanges = new int[WINDOW];
+
+        /** Start of the current segment, in CPU nanoseconds and counts. */
+        long segmentStart;
+        int segmentDrawCalls;
+        int segmentStateChanges;
+
+        Pass(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Timer query of a segment of a pass in some frame. */
+    private static class Query {
+        int id;
+        Pass pass;
+        long frame;
+    }
+
+    /** Passes by name, in order of first use. */
+    private final Map<String, Pass> passes = new LinkedHashMap<>();
+
+    /** Passes currently begun, innermost last. */
+    private final ArrayDeque<Pass> stack = new ArrayDeque<>();
+
+    /** Queries waiting for their result, oldest first, and free ones. */
+    private final ArrayDeque<Query> pending = new ArrayDeque<>();
+    private final ArrayDeque<Query> free = new ArrayDeque<>();
+
+    /** The query of the running segment, if any. */
+    private Query running;
+
+    /** Number of the current frame. */
+    private long frame = -1;
+
+    /** Number of frames whose measurements are complete. */
+    private long completed;
+
+    /** Whether timer queries are supported. */
+    private boolean timerQueries;
+    private boolean initialized;
+
+    /** Number of draw calls and state changes counted so far. */
+    private static int drawCalls;
+    private static int stateChanges;
+
+    /** Where every frame is written, null if not exported. */
+    private PrintWriter csv;
+
+    /** Where the percentiles are written on exit, null if not exported. */
+    private File json;
+
+    /**
+     * Creates a profiler exporting to the given file: per frame rows when
+     * it ends in .csv, or percentiles on exit when it ends in .json. The
+     * file may be null.
+     */
+    public FrameProfiler(File export) {
+        if (export == null) {
+            return;
+        }
+        if (export.getName().endsWith(".json")) {
+            json = export;
+        } else {
+            try {
+                csv = new PrintWriter(new BufferedWriter(new FileWriter(export)));
+                csv.println("frame,pass,cpu_ms,gpu_ms,draw_calls,state_changes");
+            } catch (IOException ex) {
+                System.err.println("Cannot write profile to " + export);
+                ex.printStackTrace();
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Counts a draw call. Called by the code issuing it, whether profiling
+     * or not, since counting is next to free.
+     */
+    public static void countDrawCall() {
+        drawCalls++;
+    }
+
+    /**
+     * Counts the given number of state changes: program, texture, buffer,
+     * uniform, material or capability changes.
+     */
+    public static void countStateChanges(int count) {
+        stateChanges += count;
+    }
+
+    /**
+     * Starts a new frame and collects the available results of earlier
+     * frames.
+     */
+    public synchronized void beginFrame(GL2 gl) {
+        if (!initialized) {
+            timerQueries = gl.isExtensionAvailable("GL_ARB_timer_query")
+                    || gl.isExtensionAvailable("GL_EXT_timer_query");
+            initialized = true;
+        }
+        collect(gl);
+
+        frame++;
+        int slot = (int) (frame % WINDOW);
+        for (Pass pass : passes.values()) {
+            pass.cpu[slot] = 0;
+            pass.gpu[slot] = 0;
+            pass.drawCalls[slot] = 0;
+            pass.stateChanges[slot] = 0;
+        }
+    }
+
+    /**
+     * Begins the pass with the given name, suspending the current pass.
+     */
+    public synchronized void begin(GL2 gl, String name) {
+        Pass pass = passes.get(name);
+        if (pass == null) {
+            pass = new Pass(name);
+            passes.put(name, pass);
+        }
+        if (!stack.isEmpty()) {
+            endSegment(gl, stack.peekLast());
+        }
+        stack.addLast(pass);
+        beginSegment(gl, pass);
+    }
+
+    /**
+     * Ends the innermost pass and resumes the pass it was nested in.
+     */
+    public synchronized void end(GL2 gl) {
+        endSegment(gl, stack.removeLast());
+        if (!stack.isEmpty()) {
+            beginSegment(gl, stack.peekLast());
+        }
+    }
+
+    private void beginSegment(GL2 gl, Pass pass) {
+        pass.segmentStart = System.nanoTime();
+        pass.segmentDrawCalls = drawCalls;
+        pass.segmentStateChanges = stateChanges;
+        if (timerQueries && frame >= 0) {
+            running = free.isEmpty() ? new Query() : free.removeFirst();
+            if (running.id == 0) {
+                int[] id = new int[1];
+                gl.glGenQueries(1, id, 0);
+                running.id = id[0];
+            }
+            running.pass = pass;
+            running.frame = frame;
+            gl.glBeginQuery(GL_TIME_ELAPSED_EXT, running.id);
+        }
+    }
+
+    private void endSegment(GL2 gl, Pass pass) {
+        if (running != null) {
+            gl.glEndQuery(GL_TIME_ELAPSED_EXT);
+            pending.addLast(running);
+            running = null;
+        }
+        if (frame < 0) {
+            return;
+        }
+        int slot = (int) (frame % WINDOW);
+        pass.cpu[slot] += (System.nanoTime() - pass.segmentStart) / 1e6;
+        pass.drawCalls[slot] += drawCalls - pass.segmentDrawCalls;
+        pass.stateChanges[slot] += stateChanges - pass.segmentStateChanges;
+    }
+
+    /**
+     * Adds the results of all finished queries, in order, and completes
+     * the frames whose queries have all finished.
+     */
+    private void collect(GL2 gl) {
+        int[] result = new int[1];
+        while (!pending.isEmpty()) {
+            Query query = pending.peekFirst();
+            if (frame - query.frame >= WINDOW) {
+                // Too old to be kept, drop the result.
+                gl.glGetQueryObjectuiv(query.id, GL_QUERY_RESULT, result, 0);
+            } else {
+                gl.glGetQueryObjectuiv(query.id, GL_QUERY_RESULT_AVAILABLE, result, 0);
+                if (result[0] == 0) {
+                    break;
+                }
+                gl.glGetQueryObjectuiv(query.id, GL_QUERY_RESULT, result, 0);
+                // The result is unsigned nanoseconds.
+                query.pass.gpu[(int) (query.frame % WINDOW)] += (result[0] & 0xffffffffL) / 1e6;
+            }
+            pending.removeFirst();
+            free.addLast(query);
+        }
+
+        // Frames before the oldest pending query are complete.
+        long next = pending.isEmpty() ? frame + 1 : pending.peekFirst().frame;
+        for (; completed < next; completed++) {
+            if (frame - completed < WINDOW) {
+                export(completed);
+            }
+        }
+    }
+
+    /**
+     * Writes the measurements of the given frame to the CSV file.
+     */
+    private void export(long frame) {
+        if (csv == null) {
+            return;
+        }
+        int slot = (int) (frame % WINDOW);
+        for (Pass pass : passes.values()) {
+            csv.println(String.format(Locale.ROOT, "%d,%s,%.4f,%s,%d,%d", frame, pass.name,
+                    pass.cpu[slot], timerQueries ? String.format(Locale.ROOT, "%.4f", pass.gpu[slot]) : "",
+                    pass.drawCalls[slot], pass.stateChanges[slot]));
+        }
+    }
+
+    /**
+     * Returns the given percentile of the values of the complete frames in
+     * the window.
+     */
+    private double percentile(double[] values, double percentile) {
+        // Slots of complete frames may already be reused by newer frames.
+        int count = (int) Math.min(completed, WINDOW - (frame + 1 - completed));
+        if (count <= 0) {
+            return 0;
+        }
+        double[] sorted = new double[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = values[(int) ((completed - 1 - i) % WINDOW)];
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(count - 1, Math.round(percentile / 100 * (count - 1)))];
+    }
+
+    /**
+     * Returns the lines of the overlay: per pass the median and 95th
+     * percentile CPU and GPU times, draw calls and state changes.
+     */
+    private List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "%-12s %13s %13s %6s %6s",
+                "pass", "cpu p50/p95", "gpu p50/p95", "draws", "states"));
+        for (Pass pass : passes.values()) {
+            String gpu = timerQueries
+                    ? String.format(Locale.ROOT, "%6.2f/%6.2f", percentile(pass.gpu, 50), percentile(pass.gpu, 95))
+                    : "-";
+            lines.add(String.format(Locale.ROOT, "%-12s %6.2f/%6.2f %13s %6.0f %6.0f", pass.name,
+                    percentile(pass.cpu, 50), percentile(pass.cpu, 95), gpu,
+                    percentile(toDoubles(pass.drawCalls), 50), percentile(toDoubles(pass.stateChanges), 50)));
+        }
+        return lines;
+    }
+
+    /**
+     * Draws the overlay in the lower left corner of a viewport of the given
+     * size. Changes the matrices and the program in use.
+     */
+    public void drawOverlay(GL2 gl, GLUT glut, int width, int height) {
+        gl.glUseProgram(0);
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glLoadIdentity();
+        gl.glOrtho(0, width, 0, height, -1, 1);
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glLoadIdentity();
+        gl.glDisable(GL_DEPTH_TEST);
+
+        List<String> lines = report();
+        gl.glColor4f(0, 0, 0, 1);
+        for (int i = 0; i < lines.size(); i++) {
+            gl.glRasterPos2i(8, 8 + 15 * (lines.size() - 1 - i));
+            glut.glutBitmapString(GLUT.BITMAP_8_BY_13, lines.get(i));
+        }
+
+        gl.glEnable(GL_DEPTH_TEST);
+    }
+
+    /**
+     * Writes the JSON summary, if any, and closes the CSV file.
+     */
+    public synchronized void close() {
+        if (csv != null) {
+            csv.close();
+            csv = null;
+        }
+        if (json == null) {
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(json)))) {
+            out.println("{");
+            out.println(String.format("  \"frames\": %d,", completed));
+            out.println(String.format("  \"window\": %d,", WINDOW));
+            out.println("  \"passes\": [");
+            int n = 0;
+            for (Pass pass : passes.values()) {
+                out.println("    {");
+                out.println(String.format("      \"name\": \"%s\",", pass.name));
+                out.println("      \"cpu_ms\": " + percentiles(pass.cpu) + ",");
+                out.println("      \"gpu_ms\": " + (timerQueries ? percentiles(pass.gpu) : "null") + ",");
+                out.println("      \"draw_calls\": " + percentiles(toDoubles(pass.drawCalls)) + ",");
+                out.println("      \"state_changes\": " + percentiles(toDoubles(pass.stateChanges)));
+                out.println(++n < passes.size() ? "    }," : "    }");
+            }
+            out.println("  ]");
+            out.println("}");
+        } catch (IOException ex) {
+            System.err.println("Cannot write profile to " + json);
+            ex.printStackTrace();
+        }
+        json = null;
+    }
+
+    private String percentiles(double[] values) {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            builder.append(String.format(Locale.ROOT, "%s\"p%.0f\": %.4f",
+                    i > 0 ? ", " : "", PERCENTILES[i], percentile(values, PERCENTILES[i])));
+        }
+        return builder.append("}").toString();
+    }
+
+    private static double[] toDoubles(int[] values) {
+        double[] doubles = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            doubles[i] = values[i];
+        }
+        return doubles;
+    }
+}
@@ -0,0 +1,131 @@
+package robotrace;
+
+/**
+ * The six planes bounding what the camera sees, in world coordinates,
+ * used to skip geometry outside the view.
+ *
+ * The planes are the rows of the product of the projection and modelview
+ * matrix combined as in Gribb and Hartmann, so they follow whatever
+ * projection and camera they are given, including the television camera.
+ * Tests are conservative: a box reported visible may still be just
+ * outside.
+ *
+ * It also keeps what is needed to estimate the size on screen of objects,
+ * for choosing their level of detail.
+ */
+class Frustum {
+
+    /** Planes a, b, c, d with ax + by + cz + d >= 0 inside, normalized. */
+    private final double[] planes = new double[24];
+
+    /** Whether the planes are set; an unset frustum culls nothing. */
+    private boolean valid;
+
+    /** Pixels per unit of size at unit distance from the eye. */
+    private double pixelScale;
+
+    /** Row of the modelview matrix giving the depth, negated. */
+    private final double[] depth = new double[4];
+
+    /** Scratch storage for the product of the matrices. */
+    private final double[] clip = new double[16];
+
+    /**
+     * Sets the planes from the given column major perspective projection
+     * and modelview matrix, for a viewport of the given height in pixels.
+     */
+    public void set(double[] projection, double[] modelview, int height) {
+        pixelScale = projection[5] * height / 2;
+        for (int i = 0; i < 4; i++) {
+            depth[i] = modelview[4 * i + 2];
+        }
+
+        for (int c = 0; c < 4; c++) {
+            for (int r = 0; r < 4; r++) {
+                clip[c * 4 + r] = projection[r] * modelview[c * 4]
+                                + projection[4 + r] * modelview[c * 4 + 1]
+                                + projection[8 + r] * modelview[c * 4 + 2]
+                                + projection[12 + r] * modelview[c * 4 + 3];
+            }
+        }
+
+        // Left, right, bottom, top, near and far: the last row plus or
+        // minus the row of the x, y and z axis.
+        for (int p = 0; p < 6; p++) {
+            int row = p / 2;
+            double sign = p % 2 == 0 ? 1 : -1;
+            double length = 0;
+            for (int i = 0; i < 4; i++) {
+                planes[4 * p + i] = clip[4 * i + 3] + sign * clip[4 * i + row];
+                if (i < 3) {
+                    length += planes[4 * p + i] * planes[4 * p + i];
+                }
+            }
+            length = Math.sqrt(length);
+            for (int i = 0; i < 4; i++) {
+                planes[4 * p + i] /= length;
+            }
+        }
+        valid = true;
+    }
+
+    /**
+     * Forgets the planes, so that everything is visible.
+     */
+    public void reset() {
+        valid = false;
+    }
+
+    /**
+     * Returns whether the axis aligned box with the given corners may be
+     * visible.
+     */
+    public boolean intersectsBox(double minX, double minY, double minZ,
+                                 double maxX, double maxY, double maxZ) {
+        if (!valid) {
+            return true;
+        }
+        for (int p = 0; p < 24; p += 4) {
+            // The corner furthest along the normal of the plane.
+            double x = planes[p] >= 0 ? maxX : minX;
+            double y = planes[p + 1] >= 0 ? maxY : minY;
+            double z = planes[p + 2] >= 0 ? maxZ : minZ;
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the height in pixels of an object of the given size at the
+     * given point, or infinity when the point is at or behind the eye or
+     * the frustum is not set.
+     */
+    public double getPixelSize(double x, double y, double z, double size) {
+        if (!valid) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double distance = -(depth[0] * x + depth[1] * y + depth[2] * z + depth[3]);
+        if (distance <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return size * pixelScale / distance;
+    }
+
+    /**
+     * Returns whether the sphere of the given center and radius may be
+     * visible.
+     */
+    public boolean intersectsSphere(double x, double y, double z, double radius) {
+        if (!valid) {
+            return true;
+        }
+        for (int p = 0; p < 24; p += 4) {
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
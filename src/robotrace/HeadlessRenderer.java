@@ -0,0 +1,123 @@
+package robotrace;
+
+import com.jogamp.opengl.util.gl2.GLUT;
+import java.io.File;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+import javax.media.opengl.glu.GLU;
+
+import static javax.media.opengl.GL.GL_TEXTURE_2D;
+
+/**
+ * Renders a race into an offscreen drawable and writes the frames to disk,
+ * without opening a window.
+ *
+ * Instead of the wall clock, the animation time advances by exactly one
+ * frame duration per frame, so the same arguments always give the same
+ * frames, and frames are rendered as fast as the GL allows. Frames are
+ * read back and written by a {@link FrameCapture}, while the next frames
+ * are being rendered.
+ */
+class HeadlessRenderer implements GLEventListener {
+
+    /** The race being rendered. */
+    private final RobotRace race;
+
+    /** Directory or raw video file the frames are written to. */
+    private final File target;
+
+    /** Number of frames per second of animation time. */
+    private final double fps;
+
+    /** Number of the frame being rendered. */
+    private int frame;
+
+    /** Reads the frames back and writes them. */
+    private FrameCapture capture;
+
+    /**
+     * Creates a renderer writing the frames of the given race, at the given
+     * number of frames per second of animation time, to the given
+     * directory or raw video file, see {@link FrameCapture}.
+     */
+    public HeadlessRenderer(RobotRace race, File target, double fps) {
+        this.race = race;
+        this.target = target;
+        this.fps = fps;
+    }
+
+    /**
+     * Renders the given number of frames at the given size.
+     */
+    public void render(int width, int height, int frames) {
+        // Never drop a frame, rendering waits for the encoder instead.
+        capture = new FrameCapture(target, true);
+
+        // Works on any device with an OpenGL 2 profile, including Mesa's
+        // software renderer on a server without display.
+        GLProfile profile = GLProfile.get(GLProfile.GL2);
+        GLCapabilities capabilities = new GLCapabilities(profile);
+        capabilities.setOnscreen(false);
+        capabilities.setDoubleBuffered(false);
+        capabilities.setDepthBits(24);
+        GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile)
+                .createOffscreenAutoDrawable(null, capabilities, null, width, height);
+        drawable.addGLEventListener(this);
+
+        race.gs.w = width;
+        race.gs.h = height;
+        long start = System.nanoTime();
+        try {
+            for (frame = 0; frame < frames; frame++) {
+                drawable.display();
+            }
+            drawable.invoke(true, glDrawable -> {
+                capture.finish(glDrawable.getGL().getGL2());
+                return true;
+            });
+        } finally {
+            drawable.destroy();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.format("Rendered %d frames in %.2f s (%.1f frames/s)%n",
+                frames, seconds, frames / seconds);
+    }
+
+    @Override
+    public void init(GLAutoDrawable drawable) {
+        race.gl = drawable.getGL().getGL2();
+        race.glu = new GLU();
+        race.glut = new GLUT();
+        race.setFixedClock(true);
+        race.initialize();
+    }
+
+    @Override
+    public void display(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        race.gl = gl;
+        race.gs.tAnim = (float) (frame / fps);
+
+        race.setView();
+        gl.glBindTexture(GL_TEXTURE_2D, 0);
+        race.drawScene();
+        race.reportError("HeadlessRenderer");
+
+        capture.capture(gl, 0, 0, drawable.getSurfaceWidth(), drawable.getSurfaceHeight());
+    }
+
+    @Override
+    public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+        race.gs.w = width;
+        race.gs.h = height;
+    }
+
+    @Override
+    public void dispose(GLAutoDrawable drawable) {
+    }
+}
@@ -0,0 +1,279 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.FloatBuffer;
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Point lights of the scene, such as floodlights along the track, binned
+ * into tiles of the screen so that a fragment only visits the lights that
+ * can reach it, see Lights.glsl.
+ *
+ * Every view the lights are moved into view coordinates and the bounds on
+ * screen of their spheres of influence are binned into tiles of TILE_SIZE
+ * pixels square. The lights and the lists of each tile are uploaded into
+ * two float textures, as GLSL 1.20 has no storage buffers: lightData holds
+ * two texels per light, its position and radius and its color, and
+ * lightTiles holds per tile a texel with the number of its lights followed
+ * by texels of four light indices. A tile keeps at most MAX_TILE_LIGHTS
+ * lights, further lights are left out of it.
+ */
+class LightManager {
+
+    /** Largest number of lights. */
+    public final static int MAX_LIGHTS = 256;
+
+    /** Width and height of a tile in pixels. */
+    public final static int TILE_SIZE = 32;
+
+    /** Largest number of lights of a tile. */
+    public final static int MAX_TILE_LIGHTS = 16;
+
+    /** Texels of a tile: its number of lights and four indices per texel. */
+    private final static int TILE_ROWS = 1 + MAX_TILE_LIGHTS / 4;
+
+    /** Texture units of the light data and the tiles. */
+    public final static int DATA_UNIT = 1;
+    public final static int TILES_UNIT = 2;
+
+    /** Position (xyz) and radius (w), then color, of every light in world coordinates. */
+    private final float[] lights = new float[8 * MAX_LIGHTS];
+    private int count;
+
+    /** Position and radius, then color, of every light in view coordinates. */
+    private final FloatBuffer data = Buffers.newDirectFloatBuffer(8 * MAX_LIGHTS);
+
+    /** Number of lights and their indices of every tile of the view. */
+    private int[] tileCounts = new int[0];
+    private int[] tileLights = new int[0];
+    private FloatBuffer tiles = Buffers.newDirectFloatBuffer(0);
+
+    /** Size of the tile texture, in tiles. */
+    private int textureTilesX, textureTilesY;
+
+    /** Tiles of the texture known to hold no lights, so without lights nothing is uploaded. */
+    private int emptyTilesX, emptyTilesY;
+
+    private final int[] textureIDs = {0, 0};
+
+    /** Matrices and viewport of the view being binned. */
+    private final double[] projection = new double[16];
+    private final double[] modelview = new double[16];
+    private final int[] viewport = new int[4];
+
+    /**
+     * Creates the textures and binds them to their units.
+     */
+    public void initialize(GL2 gl) {
+        gl.glGenTextures(2, textureIDs, 0);
+        gl.glActiveTexture(GL_TEXTURE0 + DATA_UNIT);
+        gl.glBindTexture(GL_TEXTURE_2D, textureIDs[0]);
+        setNearest(gl);
+        gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA32F, 2, MAX_LIGHTS, 0, GL_RGBA, GL_FLOAT, null);
+        gl.glActiveTexture(GL_TEXTURE0 + TILES_UNIT);
+        gl.glBindTexture(GL_TEXTURE_2D, textureIDs[1]);
+        setNearest(gl);
+        gl.glActiveTexture(GL_TEXTURE0);
+    }
+
+    private void setNearest(GL2 gl) {
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Removes all lights.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a light at the given point in world coordinates, reaching the
+     * given radius, of the given color. Lights beyond MAX_LIGHTS are
+     * ignored.
+     */
+    public void add(Vec3 position, double radius, float red, float green, float blue) {
+        if (count == MAX_LIGHTS) {
+            System.err.println("(EEE) Too many lights, ignoring the rest");
+            return;
+        }
+        int i = 8 * count++;
+        lights[i] = (float) position.x;
+        lights[i + 1] = (float) position.y;
+        lights[i + 2] = (float) position.z;
+        lights[i + 3] = (float) radius;
+        lights[i + 4] = red;
+        lights[i + 5] = green;
+        lights[i + 6] = blue;
+        lights[i + 7] = 1f;
+    }
+
+    /**
+     * Bins the lights for a view of the given column major perspective
+     * projection and camera matrix and viewport, uploads them and points
+     * the shaders using them at them. The matrices are passed rather than
+     * read back from GL, which would stall every view.
+     */
+    public void update(GL2 gl, double[] projection, double[] modelview,
+                       int x, int y, int width, int height) {
+        System.arraycopy(projection, 0, this.projection, 0, 16);
+        System.arraycopy(modelview, 0, this.modelview, 0, 16);
+        viewport[0] = x;
+        viewport[1] = y;
+        viewport[2] = width;
+        viewport[3] = height;
+        int tilesX = (viewport[2] + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (viewport[3] + TILE_SIZE - 1) / TILE_SIZE;
+        if (tilesX > textureTilesX || tilesY > textureTilesY) {
+            resize(gl, Math.max(tilesX, textureTilesX), Math.max(tilesY, textureTilesY));
+        }
+
+        if (count > 0 || tilesX > emptyTilesX || tilesY > emptyTilesY) {
+            bin(tilesX, tilesY);
+            upload(gl, tilesX, tilesY);
+        }
+
+        for (ShaderProgram program : ShaderPrograms.getShaders()) {
+            if (!program.hasUniform("lightGrid")) {
+                continue;
+            }
+            program.useProgram(gl);
+            program.setUniform(gl, "lightData", DATA_UNIT);
+            program.setUniform(gl, "lightTiles", TILES_UNIT);
+            program.setUniform(gl, "lightGrid", viewport[0], viewport[1], textureTilesX, textureTilesY);
+        }
+        gl.glUseProgram(0);
+    }
+
+    /**
+     * Allocates the tile texture and lists for the given number of tiles.
+     */
+    private void resize(GL2 gl, int tilesX, int tilesY) {
+        textureTilesX = tilesX;
+        textureTilesY = tilesY;
+        emptyTilesX = emptyTilesY = 0;
+        tileCounts = new int[tilesX * tilesY];
+        tileLights = new int[tilesX * tilesY * MAX_TILE_LIGHTS];
+        tiles = Buffers.newDirectFloatBuffer(4 * tilesX * tilesY * TILE_ROWS);
+
+        gl.glActiveTexture(GL_TEXTURE0 + TILES_UNIT);
+        gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA32F, tilesX, tilesY * TILE_ROWS, 0, GL_RGBA, GL_FLOAT, null);
+        gl.glActiveTexture(GL_TEXTURE0);
+    }
+
+    /**
+     * Moves the lights into view coordinates and adds each to the tiles
+     * covered by the bounds on screen of its sphere.
+     */
+    private void bin(int tilesX, int tilesY) {
+        for (int i = 0; i < tilesX * tilesY; i++) {
+            tileCounts[i] = 0;
+        }
+        data.clear();
+
+        double width = viewport[2], height = viewport[3];
+        for (int light = 0; light < count; light++) {
+            int i = 8 * light;
+            double x = lights[i], y = lights[i + 1], z = lights[i + 2], radius = lights[i + 3];
+            double vx = modelview[0] * x + modelview[4] * y + modelview[8] * z + modelview[12];
+            double vy = modelview[1] * x + modelview[5] * y + modelview[9] * z + modelview[13];
+            double vz = modelview[2] * x + modelview[6] * y + modelview[10] * z + modelview[14];
+            data.put((float) vx).put((float) vy).put((float) vz).put((float) radius);
+            data.put(lights, i + 4, 4);
+
+            // Nearest and furthest depth of the sphere.
+            double near = -vz - radius, far = -vz + radius;
+            if (far <= 0) {
+                continue;
+            }
+            int x0 = 0, y0 = 0, x1 = tilesX - 1, y1 = tilesY - 1;
+            if (near > 0) {
+                // Bounds of x / depth and y / depth over the bounding box
+                // of the sphere, in tiles.
+                x0 = toTile(projection[0] * lower(vx - radius, near, far), width);
+                x1 = toTile(projection[0] * upper(vx + radius, near, far), width);
+                y0 = toTile(projection[5] * lower(vy - radius, near, far), height);
+                y1 = toTile(projection[5] * upper(vy + radius, near, far), height);
+                if (x0 >= tilesX || y0 >= tilesY || x1 < 0 || y1 < 0) {
+                    continue;
+                }
+                x0 = Math.max(x0, 0);
+                y0 = Math.max(y0, 0);
+                x1 = Math.min(x1, tilesX - 1);
+                y1 = Math.min(y1, tilesY - 1);
+            }
+            for (int ty = y0; ty <= y1; ty++) {
+                for (int tx = x0; tx <= x1; tx++) {
+                    int tile = ty * tilesX + tx;
+                    if (tileCounts[tile] < MAX_TILE_LIGHTS) {
+                        tileLights[tile * MAX_TILE_LIGHTS + tileCounts[tile]++] = light;
+                    }
+                }
+            }
+        }
+        data.flip();
+    }
+
+    /** Smallest value of a / depth for a at least the given value. */
+    private static double lower(double a, double near, double far) {
+        return a / (a <= 0 ? near : far);
+    }
+
+    /** Largest value of a / depth for a at most the given value. */
+    private static double upper(double a, double near, double far) {
+        return a / (a >= 0 ? near : far);
+    }
+
+    /** Tile of the given normalized device coordinate along a side of the given size. */
+    private static int toTile(double ndc, double size) {
+        return (int) Math.floor((Math.max(-2, Math.min(2, ndc)) * 0.5 + 0.5) * size / TILE_SIZE);
+    }
+
+    /**
+     * Uploads the lights and the tiles of the view.
+     */
+    private void upload(GL2 gl, int tilesX, int tilesY) {
+        tiles.clear();
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int row = 0; row < TILE_ROWS; row++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int tile = ty * tilesX + tx;
+                    if (row == 0) {
+                        float n = tileCounts[tile];
+                        tiles.put(n).put(n).put(n).put(n);
+                    } else {
+                        for (int k = 4 * (row - 1); k < 4 * row; k++) {
+                            tiles.put(k < tileCounts[tile] ? tileLights[tile * MAX_TILE_LIGHTS + k] : 0);
+                        }
+                    }
+                }
+            }
+        }
+        tiles.flip();
+
+        gl.glActiveTexture(GL_TEXTURE0 + TILES_UNIT);
+        gl.glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, tilesX, tilesY * TILE_ROWS, GL_RGBA, GL_FLOAT, tiles);
+        if (count > 0) {
+            gl.glActiveTexture(GL_TEXTURE0 + DATA_UNIT);
+            gl.glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, 2, count, GL_RGBA, GL_FLOAT, data);
+        }
+        gl.glActiveTexture(GL_TEXTURE0);
+        FrameProfiler.countStateChanges(2);
+
+        emptyTilesX = count > 0 ? 0 : tilesX;
+        emptyTilesY = count > 0 ? 0 : tilesY;
+    }
+
+    public void dispose(GL2 gl) {
+        gl.glDeleteTextures(2, textureIDs, 0);
+    }
+}
@@ -0,0 +1,191 @@
+package robotrace;
+
+/**
+ * Mutable 4x4 matrix in column major order, as used by OpenGL.
+ *
+ * Operations multiply in place from the right, like glTranslate, glScale
+ * and glRotate do with the current matrix, so baking code can mirror the
+ * fixed function calls it replaces.
+ */
+class Matrix4 {
+
+    /** Elements in column major order. */
+    public final double[] m = new double[16];
+
+    /**
+     * Creates an identity matrix.
+     */
+    public Matrix4() {
+        identity();
+    }
+
+    /**
+     * Creates a copy of the given matrix.
+     */
+    public Matrix4(Matrix4 that) {
+        set(that);
+    }
+
+    /**
+     * Resets this matrix to the identity.
+     */
+    public Matrix4 identity() {
+        for (int i = 0; i < 16; i++) {
+            m[i] = i % 5 == 0 ? 1 : 0;
+        }
+        return this;
+    }
+
+    /**
+     * Copies the given matrix into this matrix.
+     */
+    public Matrix4 set(Matrix4 that) {
+        System.arraycopy(that.m, 0, m, 0, 16);
+        return this;
+    }
+
+    /**
+     * Multiplies this matrix by a translation.
+     */
+    public Matrix4 translate(double x, double y, double z) {
+        for (int r = 0; r < 4; r++) {
+            m[12 + r] += m[r] * x + m[4 + r] * y + m[8 + r] * z;
+        }
+        return this;
+    }
+
+    /**
+     * Multiplies this matrix by a scaling.
+     */
+    public Matrix4 scale(double x, double y, double z) {
+        for (int r = 0; r < 4; r++) {
+            m[r] *= x;
+            m[4 + r] *= y;
+            m[8 + r] *= z;
+        }
+        return this;
+    }
+
+    /**
+     * Multiplies this matrix by a rotation of the given angle in degrees
+     * around the given axis.
+     */
+    public Matrix4 rotate(double angle, double x, double y, double z) {
+        double l = Math.sqrt(x * x + y * y + z * z);
+        x /= l;
+        y /= l;
+        z /= l;
+        double c = Math.cos(Math.toRadians(angle));
+        double s = Math.sin(Math.toRadians(angle));
+        double t = 1 - c;
+
+        double[] r = {
+            t * x * x + c,     t * x * y + s * z, t * x * z - s * y, 0,
+            t * x * y - s * z, t * y * y + c,     t * y * z + s * x, 0,
+            t * x * z + s * y, t * y * z - s * x, t * z * z + c,     0,
+            0,                 0,                 0,                 1
+        };
+        return multiply(r);
+    }
+
+    /**
+     * Multiplies this matrix by a perspective projection, like
+     * gluPerspective.
+     */
+    public Matrix4 perspective(double fovy, double aspect, double near, double far) {
+        double f = 1 / Math.tan(Math.toRadians(fovy) / 2);
+        double[] r = {
+            f / aspect, 0, 0,                                0,
+            0,          f, 0,                                0,
+            0,          0, (far + near) / (near - far),      -1,
+            0,          0, 2 * far * near / (near - far),    0
+        };
+        return multiply(r);
+    }
+
+    /**
+     * Multiplies this matrix by a viewing transformation, like gluLookAt.
+     */
+    public Matrix4 lookAt(Vec3 eye, Vec3 center, Vec3 up) {
+        // Forward f, side s = f x up and the orthogonal up u = s x f.
+        double fx = center.x - eye.x, fy = center.y - eye.y, fz = center.z - eye.z;
+        double l = Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx /= l;
+        fy /= l;
+        fz /= l;
+        double sx = fy * up.z - fz * up.y, sy = fz * up.x - fx * up.z, sz = fx * up.y - fy * up.x;
+        l = Math.sqrt(sx * sx + sy * sy + sz * sz);
+        sx /= l;
+        sy /= l;
+        sz /= l;
+        double ux = sy * fz - sz * fy, uy = sz * fx - sx * fz, uz = sx * fy - sy * fx;
+        double[] r = {
+            sx, ux, -fx, 0,
+            sy, uy, -fy, 0,
+            sz, uz, -fz, 0,
+            0,  0,  0,   1
+        };
+        return multiply(r).translate(-eye.x, -eye.y, -eye.z);
+    }
+
+    /**
+     * Multiplies this matrix by the given matrix.
+     */
+    public Matrix4 multiply(Matrix4 that) {
+        return multiply(that.m);
+    }
+
+    /**
+     * Multiplies this matrix by the given column major matrix.
+     */
+    private Matrix4 multiply(double[] b) {
+        double[] a = m.clone();
+        for (int c = 0; c < 4; c++) {
+            for (int r = 0; r < 4; r++) {
+                m[c * 4 + r] = a[r] * b[c * 4]
+                             + a[4 + r] * b[c * 4 + 1]
+                             + a[8 + r] * b[c * 4 + 2]
+                             + a[12 + r] * b[c * 4 + 3];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Transforms the point (x, y, z) and writes the result into out.
+     */
+    public void transformPoint(double x, double y, double z, double[] out) {
+        double rx = m[0] * x + m[4] * y + m[8] * z + m[12];
+        double ry = m[1] * x + m[5] * y + m[9] * z + m[13];
+        double rz = m[2] * x + m[6] * y + m[10] * z + m[14];
+        out[0] = rx;
+        out[1] = ry;
+        out[2] = rz;
+    }
+
+    /**
+     * Transforms the normal (x, y, z) with the inverse transpose of the
+     * upper 3x3 part and writes the normalized result into out.
+     */
+    public void transformNormal(double x, double y, double z, double[] out) {
+        // The inverse transpose equals the cofactor matrix up to a scale,
+        // which disappears when normalizing.
+        double c00 = m[5] * m[10] - m[9] * m[6];
+        double c01 = m[8] * m[6] - m[4] * m[10];
+        double c02 = m[4] * m[9] - m[8] * m[5];
+        double c10 = m[9] * m[2] - m[1] * m[10];
+        double c11 = m[0] * m[10] - m[8] * m[2];
+        double c12 = m[8] * m[1] - m[0] * m[9];
+        double c20 = m[1] * m[6] - m[5] * m[2];
+        double c21 = m[4] * m[2] - m[0] * m[6];
+        double c22 = m[0] * m[5] - m[4] * m[1];
+
+        double rx = c00 * x + c10 * y + c20 * z;
+        double ry = c01 * x + c11 * y + c21 * z;
+        double rz = c02 * x + c12 * y + c22 * z;
+        double l = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        out[0] = rx / l;
+        out[1] = ry / l;
+        out[2] = rz / l;
+    }
+}
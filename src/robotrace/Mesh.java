@@ -0,0 +1,424 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Retained geometry stored in a vertex buffer object.
+ *
+ * Vertices are interleaved as position (3), normal (3) and texture
+ * coordinate (2) floats, optionally followed by a generic vertex attribute
+ * of up to four floats. The data is uploaded once and can then be drawn
+ * in ranges with a handful of draw calls, instead of being re-specified
+ * with glBegin/glEnd every frame. An optional index buffer allows drawing
+ * indexed primitives relative to a base vertex.
+ */
+class Mesh {
+
+    /** Number of floats per vertex for position, normal and texture coordinate. */
+    public final static int VERTEX_SIZE = 8;
+
+    /** Number of floats of the generic vertex attribute. */
+    private final int attributeSize;
+
+    /** Number of bytes between two consecutive vertices. */
+    private final int stride;
+
+    /** Name of the vertex buffer object, 0 when not yet uploaded. */
+    private final int[] bufferID = {0};
+
+    /** Name of the index buffer object, 0 when the mesh has no indices. */
+    private final int[] indexBufferID = {0};
+
+    /** Number of vertices in the vertex buffer object. */
+    private int vertexCount;
+
+    /** Location of the bound generic vertex attribute, -1 if none. */
+    private int attributeLocation = -1;
+
+    /**
+     * Creates a mesh without a generic vertex attribute.
+     */
+    public Mesh() {
+        this(0);
+    }
+
+    /**
+     * Creates a mesh with a generic vertex attribute of the given number of
+     * floats per vertex.
+     */
+    public Mesh(int attributeSize) {
+        this.attributeSize = attributeSize;
+        this.stride = (VERTEX_SIZE + attributeSize) * Buffers.SIZEOF_FLOAT;
+    }
+
+    /**
+     * Uploads the vertices collected by the builder, replacing any
+     * previously uploaded data.
+     */
+    public void upload(GL2 gl, Builder builder) {
+        if (bufferID[0] == 0) {
+            gl.glGenBuffers(1, bufferID, 0);
+        }
+        if (builder.attributeSize != attributeSize) {
+            throw new IllegalArgumentException("Vertex attribute size mismatch");
+        }
+        vertexCount = builder.getVertexCount();
+
+        FloatBuffer data = Buffers.newDirectFloatBuffer(builder.data, 0, vertexCount * builder.vertexSize);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, bufferID[0]);
+        gl.glBufferData(GL_ARRAY_BUFFER, (long) data.capacity() * Buffers.SIZEOF_FLOAT, data, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Uploads the indices of the mesh, replacing any previously uploaded
+     * indices.
+     */
+    public void uploadIndices(GL2 gl, int[] indices) {
+        if (indexBufferID[0] == 0) {
+            gl.glGenBuffers(1, indexBufferID, 0);
+        }
+        IntBuffer data = Buffers.newDirectIntBuffer(indices);
+        gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBufferID[0]);
+        gl.glBufferData(GL_ELEMENT_ARRAY_BUFFER, (long) indices.length * Buffers.SIZEOF_INT, data, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Binds the vertex buffer object and sets up the vertex, normal and
+     * texture coordinate arrays. Call before one or more draw calls.
+     */
+    public void bind(GL2 gl) {
+        FrameProfiler.countStateChanges(1);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, bufferID[0]);
+        if (indexBufferID[0] != 0) {
+            gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBufferID[0]);
+        }
+
+        gl.glEnableClientState(GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL_NORMAL_ARRAY);
+        gl.glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+
+        setBaseVertex(gl, 0);
+    }
+
+    /**
+     * Binds the mesh like {@link #bind(GL2)} and additionally feeds the
+     * generic vertex attribute to the given attribute location.
+     */
+    public void bind(GL2 gl, int location) {
+        bind(gl);
+        if (location >= 0) {
+            gl.glEnableVertexAttribArray(location);
+            attributeLocation = location;
+            setBaseVertex(gl, 0);
+        }
+    }
+
+    /**
+     * Points the vertex arrays of the bound mesh at the given vertex, so
+     * that indices drawn afterwards are relative to it.
+     */
+    public void setBaseVertex(GL2 gl, int baseVertex) {
+        long offset = (long) baseVertex * stride;
+        FrameProfiler.countStateChanges(1);
+        gl.glVertexPointer(3, GL_FLOAT, stride, offset);
+        gl.glNormalPointer(GL_FLOAT, stride, offset + 3 * Buffers.SIZEOF_FLOAT);
+        gl.glTexCoordPointer(2, GL_FLOAT, stride, offset + 6 * Buffers.SIZEOF_FLOAT);
+        if (attributeLocation >= 0) {
+            gl.glVertexAttribPointer(attributeLocation, attributeSize, GL_FLOAT, false, stride,
+                    offset + VERTEX_SIZE * Buffers.SIZEOF_FLOAT);
+        }
+    }
+
+    /**
+     * Draws count indices starting at index first as primitives of the
+     * given mode. The mesh must be bound.
+     */
+    public void drawElements(GL2 gl, int mode, int first, int count) {
+        FrameProfiler.countDrawCall();
+        gl.glDrawElements(mode, count, GL_UNSIGNED_INT, (long) first * Buffers.SIZEOF_INT);
+    }
+
+    /**
+     * Draws count vertices starting at first as primitives of the given
+     * mode. The mesh must be bound.
+     */
+    public void draw(GL2 gl, int mode, int first, int count) {
+        FrameProfiler.countDrawCall();
+        gl.glDrawArrays(mode, first, count);
+    }
+
+    /**
+     * Draws several ranges of vertices as primitives of the given mode with
+     * one call, the i-th range being count[i] vertices from first[i]. The
+     * mesh must be bound.
+     */
+    public void multiDraw(GL2 gl, int mode, int[] first, int[] count) {
+        multiDraw(gl, mode, first, count, first.length);
+    }
+
+    /**
+     * Draws the first ranges of the given ranges, like
+     * {@link #multiDraw(GL2, int, int[], int[])}.
+     */
+    public void multiDraw(GL2 gl, int mode, int[] first, int[] count, int ranges) {
+        FrameProfiler.countDrawCall();
+        gl.glMultiDrawArrays(mode, first, 0, count, 0, ranges);
+    }
+
+    /**
+     * Restores the client state changed by {@link #bind(GL2)}.
+     */
+    public void unbind(GL2 gl) {
+        if (attributeLocation >= 0) {
+            gl.glDisableVertexAttribArray(attributeLocation);
+            attributeLocation = -1;
+        }
+        gl.glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+        gl.glDisableClientState(GL_NORMAL_ARRAY);
+        gl.glDisableClientState(GL_VERTEX_ARRAY);
+
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+        if (indexBufferID[0] != 0) {
+            gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        }
+    }
+
+    /**
+     * Releases the vertex and index buffer objects.
+     */
+    public void dispose(GL2 gl) {
+        if (bufferID[0] != 0) {
+            gl.glDeleteBuffers(1, bufferID, 0);
+            bufferID[0] = 0;
+        }
+        if (indexBufferID[0] != 0) {
+            gl.glDeleteBuffers(1, indexBufferID, 0);
+            indexBufferID[0] = 0;
+        }
+        vertexCount = 0;
+    }
+
+    /**
+     * Returns the number of uploaded vertices.
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Collects interleaved vertex data on the CPU before it is uploaded.
+     */
+    static class Builder {
+
+        /** Number of floats of the generic vertex attribute. */
+        private final int attributeSize;
+
+        /** Number of floats per vertex. */
+        private final int vertexSize;
+
+        private float[] data;
+
+        private int vertexCount;
+
+        /** Current generic attribute, copied into every new vertex. */
+        private final double[] attribute;
+
+        /** Current texture coordinate of vertices added by the shapes. */
+        private double s, t;
+
+        /** Scratch storage for transformed positions and normals. */
+        private final double[] p = new double[3];
+        private final double[] n = new double[3];
+
+        /**
+         * Creates a builder for vertices without a generic attribute.
+         */
+        public Builder() {
+            this(0);
+        }
+
+        /**
+         * Creates a builder for vertices with a generic attribute of the
+         * given number of floats.
+         */
+        public Builder(int attributeSize) {
+            this.attributeSize = attributeSize;
+            this.vertexSize = VERTEX_SIZE + attributeSize;
+            this.attribute = new double[attributeSize];
+            this.data = new float[vertexSize * 256];
+        }
+
+        /**
+         * Sets a component of the generic attribute of subsequent vertices.
+         */
+        public void setAttribute(int component, double value) {
+            attribute[component] = value;
+        }
+
+        /**
+         * Sets the texture coordinate of vertices added by the shapes,
+         * which like the GLUT shapes have no texture coordinates of their own.
+         */
+        public void setTexCoord(double s, double t) {
+            this.s = s;
+            this.t = t;
+        }
+
+        /**
+         * Appends a vertex and returns its index.
+         */
+        public int vertex(double x, double y, double z,
+                          double nx, double ny, double nz,
+                          double s, double t) {
+            int offset = vertexCount * vertexSize;
+            if (offset + vertexSize > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[offset]     = (float) x;
+            data[offset + 1] = (float) y;
+            data[offset + 2] = (float) z;
+            data[offset + 3] = (float) nx;
+            data[offset + 4] = (float) ny;
+            data[offset + 5] = (float) nz;
+            data[offset + 6] = (float) s;
+            data[offset + 7] = (float) t;
+            for (int i = 0; i < attributeSize; i++) {
+                data[offset + VERTEX_SIZE + i] = (float) attribute[i];
+            }
+            return vertexCount++;
+        }
+
+        /**
+         * Appends a vertex transformed by the given matrix.
+         */
+        public int vertex(Matrix4 matrix, double x, double y, double z,
+                          double nx, double ny, double nz,
+                          double s, double t) {
+            matrix.transformPoint(x, y, z, p);
+            matrix.transformNormal(nx, ny, nz, n);
+            return vertex(p[0], p[1], p[2], n[0], n[1], n[2], s, t);
+        }
+
+        /**
+         * Appends a textured quad as two triangles, given its corners in
+         * triangle strip order like the quads drawn on the robot.
+         */
+        public void quad(Matrix4 matrix, double nx, double ny, double nz,
+                         double[] a, double[] b, double[] c, double[] d) {
+            vertex(matrix, a[0], a[1], a[2], nx, ny, nz, 0, 0);
+            vertex(matrix, b[0], b[1], b[2], nx, ny, nz, 0, 1);
+            vertex(matrix, c[0], c[1], c[2], nx, ny, nz, 1, 0);
+            vertex(matrix, c[0], c[1], c[2], nx, ny, nz, 1, 0);
+            vertex(matrix, b[0], b[1], b[2], nx, ny, nz, 0, 1);
+            vertex(matrix, d[0], d[1], d[2], nx, ny, nz, 1, 1);
+        }
+
+        /**
+         * Appends the triangles of a cube of the given size centered at the
+         * origin, like glutSolidCube.
+         */
+        public void cube(Matrix4 matrix, double size) {
+            double h = size / 2;
+            for (int axis = 0; axis < 3; axis++) {
+                for (int sign = -1; sign <= 1; sign += 2) {
+                    // Normal along the axis, u and v span the face.
+                    double[] normal = new double[3];
+                    double[] u = new double[3];
+                    double[] v = new double[3];
+                    normal[axis] = sign;
+                    u[(axis + 1) % 3] = h;
+                    v[(axis + 2) % 3] = h * sign;
+                    double[][] corner = new double[4][3];
+                    for (int k = 0; k < 4; k++) {
+                        double cu = (k & 1) == 0 ? -1 : 1;
+                        double cv = (k & 2) == 0 ? -1 : 1;
+                        for (int i = 0; i < 3; i++) {
+                            corner[k][i] = normal[i] * h + u[i] * cu + v[i] * cv;
+                        }
+                    }
+                    int[] order = {0, 1, 3, 0, 3, 2};
+                    for (int k : order) {
+                        vertex(matrix, corner[k][0], corner[k][1], corner[k][2],
+                               normal[0], normal[1], normal[2], s, t);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Appends the triangles of a sphere of the given radius centered at
+         * the origin, like glutSolidSphere.
+         */
+        public void sphere(Matrix4 matrix, double radius, int slices, int stacks) {
+            for (int j = 0; j < stacks; j++) {
+                double phi0 = Math.PI * j / stacks;
+                double phi1 = Math.PI * (j + 1) / stacks;
+                for (int i = 0; i < slices; i++) {
+                    double theta0 = 2 * Math.PI * i / slices;
+                    double theta1 = 2 * Math.PI * (i + 1) / slices;
+                    sphereVertex(matrix, radius, phi0, theta0);
+                    sphereVertex(matrix, radius, phi1, theta0);
+                    sphereVertex(matrix, radius, phi1, theta1);
+                    sphereVertex(matrix, radius, phi0, theta0);
+                    sphereVertex(matrix, radius, phi1, theta1);
+                    sphereVertex(matrix, radius, phi0, theta1);
+                }
+            }
+        }
+
+        private void sphereVertex(Matrix4 matrix, double radius, double phi, double theta) {
+            double x = Math.sin(phi) * Math.cos(theta);
+            double y = Math.sin(phi) * Math.sin(theta);
+            double z = Math.cos(phi);
+            vertex(matrix, radius * x, radius * y, radius * z, x, y, z, s, t);
+        }
+
+        /**
+         * Appends the triangles of a capped cylinder of the given radius,
+         * from z = 0 to z = height, like glutSolidCylinder.
+         */
+        public void cylinder(Matrix4 matrix, double radius, double height, int slices, int stacks) {
+            for (int i = 0; i < slices; i++) {
+                double theta0 = 2 * Math.PI * i / slices;
+                double theta1 = 2 * Math.PI * (i + 1) / slices;
+                double x0 = Math.cos(theta0), y0 = Math.sin(theta0);
+                double x1 = Math.cos(theta1), y1 = Math.sin(theta1);
+
+                // Caps
+                vertex(matrix, 0, 0, 0, 0, 0, -1, s, t);
+                vertex(matrix, radius * x1, radius * y1, 0, 0, 0, -1, s, t);
+                vertex(matrix, radius * x0, radius * y0, 0, 0, 0, -1, s, t);
+                vertex(matrix, 0, 0, height, 0, 0, 1, s, t);
+                vertex(matrix, radius * x0, radius * y0, height, 0, 0, 1, s, t);
+                vertex(matrix, radius * x1, radius * y1, height, 0, 0, 1, s, t);
+
+                // Side
+                for (int j = 0; j < stacks; j++) {
+                    double z0 = height * j / stacks;
+                    double z1 = height * (j + 1) / stacks;
+                    vertex(matrix, radius * x0, radius * y0, z0, x0, y0, 0, s, t);
+                    vertex(matrix, radius * x1, radius * y1, z0, x1, y1, 0, s, t);
+                    vertex(matrix, radius * x1, radius * y1, z1, x1, y1, 0, s, t);
+                    vertex(matrix, radius * x0, radius * y0, z0, x0, y0, 0, s, t);
+                    vertex(matrix, radius * x1, radius * y1, z1, x1, y1, 0, s, t);
+                    vertex(matrix, radius * x0, radius * y0, z1, x0, y0, 0, s, t);
+                }
+            }
+        }
+
+        /**
+         * Returns the number of vertices appended so far.
+         */
+        public int getVertexCount() {
+            return vertexCount;
+        }
+    }
+}
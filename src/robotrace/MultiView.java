@@ -0,0 +1,180 @@
+package robotrace;
+
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Split screen of views following the robots, in first person or from
+ * behind, for broadcasting the whole race at once.
+ *
+ * The scene is culled, given its levels of detail and sorted once for all
+ * views: draws are submitted against the union of the view frustums,
+ * robots at the detail the closest view needs, and the sorted draws are
+ * then issued again in every view with only the viewport, the camera and
+ * the Frame block changing. Culling, level selection, sorting and
+ * building the instances are thus done once, but every view issues all
+ * draw calls and state changes again, so their cost and their counts in
+ * {@link FrameProfiler} grow with the number of views.
+ */
+class MultiView {
+
+    /** Largest number of views. */
+    public final static int MAX_VIEWS = 16;
+
+    /** Distance the cameras look ahead of their robot. */
+    private final static double VIEW_DISTANCE = 10;
+
+    /** Field of view of the cameras, in degrees. */
+    private final static double FOVY = 45;
+
+    /** A camera following a robot and the part of the window it fills. */
+    private static class View {
+
+        final Camera camera = new Camera();
+        final Frustum frustum = new Frustum();
+        final Matrix4 projection = new Matrix4();
+        final Matrix4 modelview = new Matrix4();
+        int x, y, width, height;
+    }
+
+    /** Union of the frustums of the views. */
+    private class Union extends Frustum {
+
+        @Override
+        public boolean intersectsBox(double minX, double minY, double minZ,
+                                     double maxX, double maxY, double maxZ) {
+            for (View view : views) {
+                if (view.frustum.intersectsBox(minX, minY, minZ, maxX, maxY, maxZ)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean intersectsSphere(double x, double y, double z, double radius) {
+            for (View view : views) {
+                if (view.frustum.intersectsSphere(x, y, z, radius)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public double getPixelSize(double x, double y, double z, double size) {
+            double pixels = 0;
+            for (View view : views) {
+                if (view.frustum.intersectsSphere(x, y, z, size)) {
+                    pixels = Math.max(pixels, view.frustum.getPixelSize(x, y, z, size));
+                }
+            }
+            return pixels;
+        }
+    }
+
+    private final View[] views;
+
+    private final Frustum union = new Union();
+
+    /** Eye of the view being drawn. */
+    private final Vec3 eye = new Vec3();
+
+    /**
+     * Creates the given number of views, at most MAX_VIEWS.
+     */
+    public MultiView(int count) {
+        views = new View[Math.max(1, Math.min(count, MAX_VIEWS))];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = new View();
+        }
+    }
+
+    public int getViewCount() {
+        return views.length;
+    }
+
+    /**
+     * Returns the union of the frustums of the views, to submit the scene
+     * against.
+     */
+    public Frustum getFrustum() {
+        return union;
+    }
+
+    /**
+     * Returns the eye of the view being drawn, updated in place by
+     * {@link #begin}.
+     */
+    public Vec3 getEye() {
+        return eye;
+    }
+
+    /**
+     * Lays out the views in a grid over a window of the given size and
+     * points their cameras at the robots: view i follows robot i modulo
+     * the number of robots, in first person the first round and from
+     * behind the next, further back every round.
+     */
+    public void update(Robot[] robots, int width, int height) {
+        int columns = (int) Math.ceil(Math.sqrt(views.length));
+        int rows = (views.length + columns - 1) / columns;
+        for (int i = 0; i < views.length; i++) {
+            View view = views[i];
+            view.width = width / columns;
+            view.height = height / rows;
+            view.x = i % columns * view.width;
+            view.y = height - (i / columns + 1) * view.height;
+
+            Robot focus = robots[i % robots.length];
+            int round = i / robots.length;
+            if (round == 0) {
+                view.camera.setFirstPersonMode(focus, VIEW_DISTANCE);
+            } else {
+                view.camera.setChaseMode(focus, round * VIEW_DISTANCE);
+            }
+
+            view.projection.identity().perspective(FOVY, (double) view.width / view.height,
+                    0.1 * VIEW_DISTANCE, 10 * VIEW_DISTANCE);
+            view.modelview.identity().lookAt(view.camera.eye, view.camera.center, view.camera.up);
+            view.frustum.set(view.projection.m, view.modelview.m, view.height);
+        }
+    }
+
+    /**
+     * Sets the viewport and camera of the given view and clears it. The
+     * modelview matrix holds only the camera afterwards.
+     */
+    public void begin(GL2 gl, int i) {
+        View view = views[i];
+        gl.glViewport(view.x, view.y, view.width, view.height);
+        gl.glScissor(view.x, view.y, view.width, view.height);
+        gl.glEnable(GL_SCISSOR_TEST);
+        gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glLoadMatrixd(view.projection.m, 0);
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glLoadMatrixd(view.modelview.m, 0);
+        eye.set(view.camera.eye);
+        FrameProfiler.countStateChanges(3);
+    }
+
+    /**
+     * Bins the given lights for the given view.
+     */
+    public void updateLights(GL2 gl, LightManager lights, int i) {
+        View view = views[i];
+        lights.update(gl, view.projection.m, view.modelview.m, view.x, view.y, view.width, view.height);
+    }
+
+    /**
+     * Restores the viewport of the whole window of the given size after the
+     * last view.
+     */
+    public void end(GL2 gl, int width, int height) {
+        gl.glDisable(GL_SCISSOR_TEST);
+        gl.glViewport(0, 0, width, height);
+    }
+}
@@ -7,15 +7,15 @@ package robotrace;
 public class ParametricTrack extends RaceTrack {
     
     @Override
-    protected Vector getPoint(double t) {
+    protected void getPoint(double t, Vec3 out) {
         // P(t) = (10 cos(2pi*t); 14 sin(2pi*t); 1):
-        return new Vector(10 * Math.cos(2 * Math.PI * t), 14 * Math.sin(2 * Math.PI * t), 1);
+        out.set(10 * Math.cos(2 * Math.PI * t), 14 * Math.sin(2 * Math.PI * t), 1);
     }
 
     @Override
-    protected Vector getTangent(double t) {
+    protected void getTangent(double t, Vec3 out) {
         // dp/dt
-        return new Vector(-20 * Math.PI * Math.sin(2 * Math.PI * t), 28 * Math.PI * Math.cos( 2 * Math.PI * t), 1).normalized();
+        out.set(-20 * Math.PI * Math.sin(2 * Math.PI * t), 28 * Math.PI * Math.cos( 2 * Math.PI * t), 1).normalize();
     }
     
 }
@@ -0,0 +1,180 @@
+package robotrace;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes the ticks of a race to a compact binary replay file, read back by
+ * {@link RaceReplay}.
+ *
+ * The distance, lane and height of every robot are stored as fixed point
+ * integers in units of 1 / SCALE. Every KEYFRAME_INTERVAL-th tick is a
+ * keyframe holding the values themselves; the ticks in between hold the
+ * difference with the value predicted from the two ticks before, which is
+ * zero for a robot running at a constant speed in its lane. All numbers
+ * are zigzag encoded variable length integers, so most ticks take one byte
+ * per value. The file ends with an index of the keyframes and a footer
+ * pointing at it:
+ *
+ *   header:   MAGIC, VERSION, tick rate, KEYFRAME_INTERVAL, track, robots,
+ *             the animation phase of every robot (float)
+ *   ticks:    per robot distance, lane and height, as varints
+ *   index:    the offset in the file of every keyframe (long)
+ *   footer:   offset of the index (long), number of ticks (int), MAGIC
+ *
+ * A recording holds one race; it is complete once closed.
+ */
+class RaceRecorder {
+
+    /** Marks a replay file, "RRL1". */
+    final static int MAGIC = 0x52524c31;
+
+    final static int VERSION = 1;
+
+    /** Number of ticks from one keyframe to the next. */
+    final static int KEYFRAME_INTERVAL = 60;
+
+    /** Fixed point units per unit of distance, lane and height. */
+    final static double SCALE = 4096;
+
+    /** Values stored per robot per tick: distance, lane and height. */
+    final static int FIELDS = 3;
+
+    /** Bytes of the footer. */
+    final static int FOOTER_SIZE = 8 + 4 + 4;
+
+    private final DataOutputStream out;
+
+    /** Values of the last two ticks since the last keyframe, per robot and field. */
+    private final long[] last;
+    private final long[] beforeLast;
+
+    /** Number of ticks recorded. */
+    private int ticks;
+
+    /** Offsets of the keyframes. */
+    private long[] index = new long[64];
+
+    private boolean closed;
+
+    /**
+     * Starts a recording of a race on the given track, run at the given
+     * tick rate by robots of the given animation phases.
+     */
+    public RaceRecorder(File file, int tickRate, int track, float[] phases) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(tickRate);
+        out.writeInt(KEYFRAME_INTERVAL);
+        out.writeInt(track);
+        out.writeInt(phases.length);
+        for (float phase : phases) {
+            out.writeFloat(phase);
+        }
+        last = new long[FIELDS * phases.length];
+        beforeLast = new long[FIELDS * phases.length];
+    }
+
+    /**
+     * Appends the next tick of the race. Errors are reported once and end
+     * the recording.
+     */
+    public synchronized void record(RaceSnapshot snapshot) {
+        if (closed) {
+            return;
+        }
+        try {
+            boolean keyframe = ticks % KEYFRAME_INTERVAL == 0;
+            if (keyframe) {
+                int keyframes = ticks / KEYFRAME_INTERVAL;
+                if (keyframes == index.length) {
+                    index = Arrays.copyOf(index, 2 * keyframes);
+                }
+                index[keyframes] = out.size();
+            }
+            int sinceKeyframe = ticks % KEYFRAME_INTERVAL;
+            for (int robot = 0; robot < snapshot.getCount(); robot++) {
+                write(FIELDS * robot, snapshot.getDistance(robot), sinceKeyframe);
+                write(FIELDS * robot + 1, snapshot.getLane(robot), sinceKeyframe);
+                write(FIELDS * robot + 2, snapshot.getHeight(robot), sinceKeyframe);
+            }
+            ticks++;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            closed = true;
+        }
+    }
+
+    /**
+     * Writes the given field of the given value, the given number of ticks
+     * after the last keyframe.
+     */
+    private void write(int field, double value, int sinceKeyframe) throws IOException {
+        long quantized = Math.round(value * SCALE);
+        writeVarint(out, quantized - predict(last[field], beforeLast[field], sinceKeyframe));
+        beforeLast[field] = last[field];
+        last[field] = quantized;
+    }
+
+    /**
+     * Returns the value expected the given number of ticks after the last
+     * keyframe, from the values of the last two ticks: nothing at the
+     * keyframe, the same value the tick after, else the same change.
+     */
+    static long predict(long last, long beforeLast, int sinceKeyframe) {
+        if (sinceKeyframe == 0) {
+            return 0;
+        }
+        if (sinceKeyframe == 1) {
+            return last;
+        }
+        return 2 * last - beforeLast;
+    }
+
+    /**
+     * Writes a zigzag encoded variable length integer: seven bits per byte,
+     * low bits first, with the high bit set on all but the last byte.
+     */
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            out.writeByte((int) (zigzag & 0x7f) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    /**
+     * Returns the number of ticks recorded.
+     */
+    public synchronized int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Writes the index and the footer and closes the file.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            long indexOffset = out.size();
+            for (int i = 0; i < (ticks + KEYFRAME_INTERVAL - 1) / KEYFRAME_INTERVAL; i++) {
+                out.writeLong(index[i]);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(ticks);
+            out.writeInt(MAGIC);
+            out.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package robotrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a race recorded by {@link RaceRecorder}, see there for the
+ * format.
+ *
+ * The file is memory mapped, so opening it reads only the header and
+ * footer and the operating system pages in the parts played. Seeking
+ * finds the keyframe before the requested tick through the index and
+ * decodes forward from there, at most a keyframe interval of ticks.
+ * Playing forward continues from the last tick decoded instead, and keeps
+ * the values of the two ticks sampled around the time, so that a frame
+ * decodes at most the ticks it moved forward, into reused arrays.
+ */
+class RaceReplay {
+
+    private final MappedByteBuffer data;
+
+    private final int tickRate;
+    private final int keyframeInterval;
+    private final int track;
+    private final float[] phases;
+    private final int count;
+
+    /** Number of ticks and offset of the keyframe index. */
+    private final int ticks;
+    private final int indexOffset;
+
+    /** Tick decoded last, -1 if none, and the offset of the tick after it. */
+    private int tick = -1;
+    private int position;
+
+    /** Values of the tick decoded last and the one before, per robot and field. */
+    private final long[] last;
+    private final long[] beforeLast;
+
+    /**
+     * Earlier tick sampled last, -1 if none, the values of it and the tick
+     * after, and the fraction of the way between them of the time sampled.
+     */
+    private int sampled = -1;
+    private long[] from;
+    private long[] to;
+    private double alpha;
+
+    /**
+     * Opens the given recording.
+     */
+    public RaceReplay(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel channel = in.getChannel()) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.capacity() < RaceRecorder.FOOTER_SIZE || data.getInt(0) != RaceRecorder.MAGIC) {
+            throw new IOException(file + " is not a race recording");
+        }
+        if (data.getInt(data.capacity() - 4) != RaceRecorder.MAGIC) {
+            throw new IOException(file + " is incomplete, the recording was not closed");
+        }
+        if (data.getInt(4) != RaceRecorder.VERSION) {
+            throw new IOException(file + " has unsupported version " + data.getInt(4));
+        }
+        tickRate = data.getInt(8);
+        keyframeInterval = data.getInt(12);
+        track = data.getInt(16);
+        count = data.getInt(20);
+        phases = new float[count];
+        for (int i = 0; i < count; i++) {
+            phases[i] = data.getFloat(24 + 4 * i);
+        }
+        int footer = data.capacity() - RaceRecorder.FOOTER_SIZE;
+        indexOffset = (int) data.getLong(footer);
+        ticks = data.getInt(footer + 8);
+
+        last = new long[RaceRecorder.FIELDS * count];
+        beforeLast = new long[RaceRecorder.FIELDS * count];
+        from = new long[RaceRecorder.FIELDS * count];
+        to = new long[RaceRecorder.FIELDS * count];
+    }
+
+    /**
+     * Returns the number of robots.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the track the race was run on.
+     */
+    public int getTrack() {
+        return track;
+    }
+
+    /**
+     * Returns the animation phase of a robot.
+     */
+    public float getPhase(int robot) {
+        return phases[robot];
+    }
+
+    /**
+     * Returns the duration of the race in seconds.
+     */
+    public double getDuration() {
+        return Math.max(0, ticks - 1) / (double) tickRate;
+    }
+
+    /**
+     * Moves to the state of the race at the given time, interpolated
+     * between the ticks around it and clamped to the recording, to be read
+     * with getDistance, getLane and getHeight. Nothing is allocated.
+     */
+    public void sample(double time) {
+        if (ticks == 0) {
+            return;
+        }
+        double at = Math.max(0, Math.min(ticks - 1, time * tickRate));
+        int first = (int) Math.floor(at);
+        if (first != sampled) {
+            if (sampled >= 0 && first == sampled + 1) {
+                // Playing forward, the later tick becomes the earlier.
+                long[] swap = from;
+                from = to;
+                to = swap;
+            } else {
+                seek(first);
+                System.arraycopy(last, 0, from, 0, last.length);
+            }
+            if (first + 1 < ticks) {
+                seek(first + 1);
+                System.arraycopy(last, 0, to, 0, last.length);
+            }
+            sampled = first;
+        }
+        alpha = first + 1 < ticks ? at - first : 0;
+    }
+
+    /**
+     * Returns the distance of a robot at the time sampled last.
+     */
+    public double getDistance(int robot) {
+        return value(RaceRecorder.FIELDS * robot);
+    }
+
+    /**
+     * Returns the lane of a robot at the time sampled last.
+     */
+    public double getLane(int robot) {
+        return value(RaceRecorder.FIELDS * robot + 1);
+    }
+
+    /**
+     * Returns the height of a robot at the time sampled last.
+     */
+    public double getHeight(int robot) {
+        return value(RaceRecorder.FIELDS * robot + 2);
+    }
+
+    private double value(int field) {
+        return (from[field] + (to[field] - from[field]) * alpha) / RaceRecorder.SCALE;
+    }
+
+    /**
+     * Decodes up to the given tick, from the tick decoded last when it is
+     * in the same keyframe interval and not past the target, else from the
+     * keyframe before the target.
+     */
+    private void seek(int target) {
+        int keyframe = target / keyframeInterval;
+        if (tick < 0 || tick > target || tick / keyframeInterval != keyframe) {
+            position = (int) data.getLong(indexOffset + 8 * keyframe);
+            tick = keyframe * keyframeInterval - 1;
+        }
+        while (tick < target) {
+            tick++;
+            int sinceKeyframe = tick % keyframeInterval;
+            for (int field = 0; field < last.length; field++) {
+                long value = RaceRecorder.predict(last[field], beforeLast[field], sinceKeyframe) + readVarint();
+                beforeLast[field] = last[field];
+                last[field] = value;
+            }
+        }
+    }
+
+    /**
+     * Reads a zigzag encoded variable length integer at the current
+     * position.
+     */
+    private long readVarint() {
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get(position++);
+            zigzag |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
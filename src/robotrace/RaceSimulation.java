@@ -0,0 +1,253 @@
+package robotrace;
+
+/**
+ * Simulates the robots racing on a track: advances them along the track
+ * and resolves their lane changes.
+ *
+ * Robots are kept sorted by their position along the track, so the robots
+ * near a robot are found by sweeping forwards and backwards over the sorted
+ * order until the gap exceeds {@link #INTERFERENCE_DISTANCE}, instead of
+ * comparing every pair. Lane changes are decided for all robots from the
+ * same state and applied afterwards, so the outcome does not depend on the
+ * order in which robots are visited.
+ */
+class RaceSimulation {
+
+    /** Number of lanes on a track. */
+    public final static int LANES = 4;
+
+    /** Distance along the track within which robots interfere with each other. */
+    public final static double INTERFERENCE_DISTANCE = 4;
+
+    /** Number of simulated robots. */
+    private final int count;
+
+    /** Speed of each robot, in track units per second. */
+    private final double[] speed;
+
+    /** Distance travelled by each robot since the start. */
+    private final double[] distance;
+
+    /** Current lane of each robot, 0 being the inner lane. */
+    private final int[] lane;
+
+    /** Lane of each robot after the pending lane changes. */
+    private final int[] nextLane;
+
+    /** Position of each robot on the track, in [0, length). */
+    private final double[] key;
+
+    /** Robot indices sorted by their position on the track. */
+    private final int[] order;
+
+    /** Initial lanes, restored when the race restarts. */
+    private final int[] startLane;
+
+    /** Track on which the race takes place. */
+    private RaceTrack track;
+
+    /** Length of the track. */
+    private double length;
+
+    /** Base height and height oscillation amplitude of each robot. */
+    private final double[] height;
+    private final double[] heightAmplitude;
+
+    /** Time since the start of the race in seconds. */
+    private double time;
+
+    /**
+     * Creates a race on the given track, with the given robot speeds in
+     * track units per second and the given starting lanes.
+     */
+    public RaceSimulation(RaceTrack track, double[] speed, int[] lane) {
+        this.count = speed.length;
+        this.track = track;
+        this.length = track.getLength();
+        this.speed = speed.clone();
+        this.distance = new double[count];
+        this.lane = lane.clone();
+        this.startLane = lane.clone();
+        this.nextLane = new int[count];
+        this.key = new double[count];
+        this.order = new int[count];
+        this.height = new double[count];
+        this.heightAmplitude = new double[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            height[i] = 3;
+        }
+    }
+
+    /**
+     * Moves the race to another track. Distances and speeds are scaled with
+     * the track length, so every robot keeps its progress and its lap time.
+     */
+    public void setTrack(RaceTrack track) {
+        if (track == this.track) {
+            return;
+        }
+        double scale = track.getLength() / length;
+        for (int i = 0; i < count; i++) {
+            distance[i] *= scale;
+            speed[i] *= scale;
+        }
+        this.track = track;
+        this.length = track.getLength();
+    }
+
+    /**
+     * Advances all robots by dt seconds and resolves lane changes.
+     */
+    public void step(double dt) {
+        time += dt;
+        for (int i = 0; i < count; i++) {
+            distance[i] += speed[i] * dt;
+            double k = distance[i] % length;
+            key[i] = k < 0 ? k + length : k;
+        }
+        sortByPosition();
+        resolveLanes();
+    }
+
+    /**
+     * Puts every robot back at the start in its starting lane.
+     */
+    public void restart() {
+        time = 0;
+        for (int i = 0; i < count; i++) {
+            distance[i] = 0;
+            key[i] = 0;
+            lane[i] = startLane[i];
+        }
+    }
+
+    /**
+     * Insertion sort of the robot order by position. Between two steps the
+     * order barely changes, so this is close to linear.
+     */
+    private void sortByPosition() {
+        for (int a = 1; a < count; a++) {
+            int robot = order[a];
+            double k = key[robot];
+            int b = a - 1;
+            while (b >= 0 && key[order[b]] > k) {
+                order[b + 1] = order[b];
+                b--;
+            }
+            order[b + 1] = robot;
+        }
+    }
+
+    /**
+     * Decides the lane changes of all robots from the current lanes, then
+     * applies them.
+     *
+     * A robot that has a slower robot close by in its own lane moves one
+     * lane to the right to overtake. Otherwise, a robot moves one lane to
+     * the left when no robot is close by in that lane.
+     */
+    private void resolveLanes() {
+        for (int a = 0; a < count; a++) {
+            int i = order[a];
+            int occupied = 0;
+            boolean blocked = false;
+
+            // Sweep forwards over the robots ahead.
+            for (int n = 1; n < count && !blocked; n++) {
+                int j = order[(a + n) % count];
+                double gap = key[j] - key[i];
+                if (gap < 0) {
+                    gap += length;
+                }
+                if (gap >= INTERFERENCE_DISTANCE) {
+                    break;
+                }
+                occupied |= 1 << lane[j];
+                blocked |= lane[j] == lane[i] && isFaster(i, j);
+            }
+
+            // Sweep backwards over the robots behind, unless the decision
+            // to overtake has already been made.
+            for (int n = 1; n < count && !blocked; n++) {
+                int j = order[(a - n + count) % count];
+                double gap = key[i] - key[j];
+                if (gap < 0) {
+                    gap += length;
+                }
+                if (gap >= INTERFERENCE_DISTANCE) {
+                    break;
+                }
+                occupied |= 1 << lane[j];
+                blocked |= lane[j] == lane[i] && isFaster(i, j);
+            }
+
+            if (blocked && lane[i] < LANES - 1) {
+                nextLane[i] = lane[i] + 1;
+            } else if (!blocked && lane[i] > 0 && (occupied & (1 << (lane[i] - 1))) == 0) {
+                nextLane[i] = lane[i] - 1;
+            } else {
+                nextLane[i] = lane[i];
+            }
+        }
+        System.arraycopy(nextLane, 0, lane, 0, count);
+    }
+
+    /**
+     * Whether robot i is faster than robot j, ties broken by index.
+     */
+    private boolean isFaster(int i, int j) {
+        return speed[i] > speed[j] || (speed[i] == speed[j] && i > j);
+    }
+
+    /**
+     * Sets the height of a robot, which oscillates with the given amplitude
+     * around the given base height over time.
+     */
+    public void setHeight(int robot, double base, double amplitude) {
+        height[robot] = base;
+        heightAmplitude[robot] = amplitude;
+    }
+
+    /**
+     * Returns a copy of the current state, labelled with the given time.
+     */
+    public RaceSnapshot snapshot(double time) {
+        double[] lanes = new double[count];
+        double[] heights = new double[count];
+        double oscillation = Math.sin(this.time);
+        for (int i = 0; i < count; i++) {
+            lanes[i] = lane[i];
+            heights[i] = height[i] + heightAmplitude[i] * oscillation;
+        }
+        return new RaceSnapshot(time, distance.clone(), lanes, heights);
+    }
+
+    /**
+     * Returns the number of simulated robots.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the track on which the race takes place.
+     */
+    public RaceTrack getTrack() {
+        return track;
+    }
+
+    /**
+     * Returns the distance travelled by a robot since the start.
+     */
+    public double getDistance(int robot) {
+        return distance[robot];
+    }
+
+    /**
+     * Returns the current lane of a robot.
+     */
+    public int getLane(int robot) {
+        return lane[robot];
+    }
+}
@@ -0,0 +1,86 @@
+package robotrace;
+
+/**
+ * Immutable state of all robots in a race at one moment in time.
+ *
+ * Snapshots are produced by the simulation and read by the renderer, which
+ * may run on another thread. Lanes are stored as doubles, so that an
+ * interpolated snapshot can place a robot in between two lanes while it
+ * changes lanes.
+ */
+final class RaceSnapshot {
+
+    /** Simulation time of this snapshot in seconds. */
+    private final double time;
+
+    /** Distance travelled by each robot since the start. */
+    private final double[] distance;
+
+    /** Lane of each robot, fractional while changing lanes. */
+    private final double[] lane;
+
+    /** Height of each robot. */
+    private final double[] height;
+
+    /**
+     * Creates a snapshot that takes ownership of the given arrays.
+     */
+    RaceSnapshot(double time, double[] distance, double[] lane, double[] height) {
+        this.time = time;
+        this.distance = distance;
+        this.lane = lane;
+        this.height = height;
+    }
+
+    /**
+     * Returns the snapshot at fraction alpha in between a and b, both
+     * snapshots of the same race.
+     */
+    public static RaceSnapshot interpolate(RaceSnapshot a, RaceSnapshot b, double alpha) {
+        int count = a.getCount();
+        double[] distance = new double[count];
+        double[] lane = new double[count];
+        double[] height = new double[count];
+        for (int i = 0; i < count; i++) {
+            distance[i] = a.distance[i] + (b.distance[i] - a.distance[i]) * alpha;
+            lane[i] = a.lane[i] + (b.lane[i] - a.lane[i]) * alpha;
+            height[i] = a.height[i] + (b.height[i] - a.height[i]) * alpha;
+        }
+        return new RaceSnapshot(a.time + (b.time - a.time) * alpha, distance, lane, height);
+    }
+
+    /**
+     * Returns the simulation time of this snapshot in seconds.
+     */
+    public double getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the number of robots in this snapshot.
+     */
+    public int getCount() {
+        return distance.length;
+    }
+
+    /**
+     * Returns the distance travelled by a robot since the start.
+     */
+    public double getDistance(int robot) {
+        return distance[robot];
+    }
+
+    /**
+     * Returns the lane of a robot.
+     */
+    public double getLane(int robot) {
+        return lane[robot];
+    }
+
+    /**
+     * Returns the height of a robot.
+     */
+    public double getHeight(int robot) {
+        return height[robot];
+    }
+}
@@ -0,0 +1,167 @@
+package robotrace;
+
+import java.io.PrintStream;
+
+/**
+ * Outcomes of many races of the same robots, per robot: finishing
+ * positions, overtakes and the time spent in every lane.
+ *
+ * Every task of a {@link BulkSimulation} fills its own statistics, which
+ * are merged afterwards, so no counter is ever shared between threads.
+ */
+class RaceStatistics {
+
+    /** Number of robots per race. */
+    private final int count;
+
+    /** Number of races added. */
+    private long races;
+
+    /** Simulated time of all races, in seconds. */
+    private double time;
+
+    /** Number of races each robot finished in each position, robot major. */
+    private final long[] positions;
+
+    /** Sum over the races of the finishing time of each robot. */
+    private final double[] finishTime;
+
+    /** Number of robots each robot passed. */
+    private final long[] overtakes;
+
+    /** Number of ticks each robot spent in each lane until it finished, robot major. */
+    private final long[] laneTicks;
+
+    public RaceStatistics(int count) {
+        this.count = count;
+        positions = new long[count * count];
+        finishTime = new double[count];
+        overtakes = new long[count];
+        laneTicks = new long[count * RaceSimulation.LANES];
+    }
+
+    /**
+     * Adds a race that took the given time, in which the robots finished
+     * in the given order at the given times.
+     */
+    public void addRace(double duration, int[] order, double[] finish) {
+        races++;
+        time += duration;
+        for (int position = 0; position < count; position++) {
+            positions[order[position] * count + position]++;
+        }
+        for (int robot = 0; robot < count; robot++) {
+            finishTime[robot] += finish[robot];
+        }
+    }
+
+    /**
+     * Counts the given number of robots passed by a robot.
+     */
+    public void addOvertakes(int robot, int passed) {
+        overtakes[robot] += passed;
+    }
+
+    /**
+     * Counts a tick of a robot in a lane.
+     */
+    public void addLaneTick(int robot, int lane) {
+        laneTicks[robot * RaceSimulation.LANES + lane]++;
+    }
+
+    /**
+     * Adds the counts of other statistics of the same robots to these.
+     */
+    public void merge(RaceStatistics other) {
+        races += other.races;
+        time += other.time;
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] += other.positions[i];
+        }
+        for (int i = 0; i < count; i++) {
+            finishTime[i] += other.finishTime[i];
+            overtakes[i] += other.overtakes[i];
+        }
+        for (int i = 0; i < laneTicks.length; i++) {
+            laneTicks[i] += other.laneTicks[i];
+        }
+    }
+
+    public long getRaces() {
+        return races;
+    }
+
+    /**
+     * Returns the simulated time of all races, in seconds.
+     */
+    public double getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the fraction of the races the given robot finished in the
+     * given position, 0 being the winner.
+     */
+    public double getPositionRate(int robot, int position) {
+        return races == 0 ? 0 : positions[robot * count + position] / (double) races;
+    }
+
+    /**
+     * Returns the mean finishing position of a robot, 0 being the winner.
+     */
+    public double getMeanPosition(int robot) {
+        if (races == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int position = 0; position < count; position++) {
+            sum += position * positions[robot * count + position];
+        }
+        return sum / races;
+    }
+
+    /**
+     * Returns the mean finishing time of a robot, in seconds.
+     */
+    public double getMeanFinishTime(int robot) {
+        return races == 0 ? 0 : finishTime[robot] / races;
+    }
+
+    /**
+     * Returns the mean number of robots a robot passed per race.
+     */
+    public double getMeanOvertakes(int robot) {
+        return races == 0 ? 0 : overtakes[robot] / (double) races;
+    }
+
+    /**
+     * Returns the fraction of its race a robot spent in a lane.
+     */
+    public double getLaneOccupancy(int robot, int lane) {
+        long total = 0;
+        for (int i = 0; i < RaceSimulation.LANES; i++) {
+            total += laneTicks[robot * RaceSimulation.LANES + i];
+        }
+        return total == 0 ? 0 : laneTicks[robot * RaceSimulation.LANES + lane] / (double) total;
+    }
+
+    /**
+     * Prints a table of the statistics per robot.
+     */
+    public void print(PrintStream out) {
+        out.format("%d races, %.0f s simulated%n", races, time);
+        out.print("robot   wins  position  finish (s)  overtakes");
+        for (int lane = 0; lane < RaceSimulation.LANES; lane++) {
+            out.format("  lane %d", lane);
+        }
+        out.println();
+        for (int robot = 0; robot < count; robot++) {
+            out.format("%5d  %4.1f%%  %8.2f  %10.1f  %9.2f", robot, 100 * getPositionRate(robot, 0),
+                    getMeanPosition(robot) + 1, getMeanFinishTime(robot), getMeanOvertakes(robot));
+            for (int lane = 0; lane < RaceSimulation.LANES; lane++) {
+                out.format("  %5.1f%%", 100 * getLaneOccupancy(robot, lane));
+            }
+            out.println();
+        }
+    }
+}
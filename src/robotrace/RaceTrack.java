@@ -1,10 +1,6 @@
 package robotrace;
 
-import com.jogamp.opengl.util.gl2.GLUT;
-import static javax.media.opengl.GL.GL_LINES;
 import javax.media.opengl.GL2;
-import javax.media.opengl.glu.GLU;
-import java.nio.FloatBuffer;
 
 import static javax.media.opengl.GL2.*;
 
@@ -19,6 +15,48 @@ abstract class RaceTrack {
     
     protected float drawingInterval = 1f / 500;
     
+    /**
+     * Retained geometry of the track surface, walls and tangent lines,
+     * with the texture layer of each vertex as generic attribute.
+     */
+    private final Mesh mesh = new Mesh(1);
+    
+    /** The drawing interval the mesh was built with, -1 if not built. */
+    private float meshInterval = -1;
+    
+    /** First vertex of the surface and wall strips. */
+    private final int[] stripFirst = new int[3];
+
+    /** First vertex of the tangent lines. */
+    private int linesFirst;
+    
+    /** Number of tessellation steps of a segment, the unit of culling. */
+    private final static int SEGMENT_STEPS = 20;
+    
+    /** Number of steps and segments the mesh was built with. */
+    private int steps, segments;
+    
+    /** Bounding box of every segment: min x, y, z and max x, y, z. */
+    private double[] segmentBounds = new double[0];
+    
+    /** Vertex ranges of the visible segments, adjacent ones merged. */
+    private int[] drawFirst = new int[0];
+    private int[] drawCount = new int[0];
+    
+    /** Visible runs of segments, as first and end step. */
+    private int[] runStart = new int[0];
+    private int[] runEnd = new int[0];
+    
+    /** Number of equal distance intervals in the arc length table. */
+    private final static int ARC_LENGTH_SAMPLES = 1024;
+    
+    /** Arc length parameterization, built on first use. */
+    private ArcLengthTable arcLength;
+    
+    /** Scratch storage for the allocation free lookups. */
+    private final Vec3 point = new Vec3();
+    private final Vec3 tangent = new Vec3();
+    
     /**
      * Constructor for the default track.
      */
@@ -26,87 +64,199 @@ abstract class RaceTrack {
     }
     
     /**
-     * Draws this track, based on the control points.
+     * Sets the parameter step between two tessellated cross sections.
+     * The mesh is rebuilt on the next draw.
+     */
+    public void setDrawingInterval(float drawingInterval) {
+        this.drawingInterval = drawingInterval;
+    }
+
+    /**
+     * Marks the retained mesh as outdated, for example after changing the
+     * shape of the track. The mesh is rebuilt on the next draw.
      */
-    public void draw(GL2 gl, GLU glu, GLUT glut, Material material) {
-        gl.glPushMatrix();
+    public void invalidate() {
+        meshInterval = -1;
+    }
+
+    /** Draw of the whole track. */
+    private final RenderQueue.Command command = this::drawTrack;
+
+    /** The shader and frustum of the submitted draw. */
+    private ShaderProgram shader;
+    private Frustum frustum;
+
+    /**
+     * Submits the draw of the segments of this track in the given frustum,
+     * based on the control points, with the given shader and material,
+     * timed as the given pass. The shader samples the layers of the
+     * textures in {@link Textures#array}. The frustum is read when the
+     * queue is flushed.
+     */
+    public void submit(RenderQueue queue, ShaderProgram shader, Material material, Frustum frustum,
+            String pass) {
+        this.shader = shader;
+        this.frustum = frustum;
+        queue.submit(RenderQueue.OPAQUE, shader, GL_TEXTURE_2D_ARRAY, Textures.array.getTextureObject(),
+                material, pass, command);
+    }
+
+    /**
+     * Draws the tangent lines, and the top surface and the walls with one
+     * call, the texture of each selected by its layer. Only the segments
+     * in the frustum are drawn.
+     */
+    private void drawTrack(GL2 gl) {
+        if (meshInterval != drawingInterval) {
+            buildMesh(gl);
+        }
+        int runs = findVisibleRuns();
+        if (runs == 0) {
+            return;
+        }
+        mesh.bind(gl, shader.getAttributeLocation("layer"));
+
+        // Tangent and tangent normal lines, four vertices per step
+        for (int r = 0; r < runs; r++) {
+            drawFirst[r] = linesFirst + 4 * runStart[r];
+            drawCount[r] = 4 * (Math.min(runEnd[r], steps) - runStart[r]);
+        }
+        gl.glLineWidth(2.5f);
+        gl.glColor3f(1f, 0f, 0f);
+        mesh.multiDraw(gl, GL_LINES, drawFirst, drawCount, runs);
         gl.glColor3f(0.1f, 0.2f, 0.3f);
-        for(float t = 0; t < 1; t += drawingInterval) {
-            Vector P = getPoint(t); // P.z = 1
-            Vector TN = getTangent(t).cross(Vector.Z).normalized(); // Normal on tangent
-
-            Vector Pout = P.add(TN.scale(laneWidthTotal / 2)); // Point projected on track furthest from O
-            Vector Pin = P.subtract(TN.scale(laneWidthTotal / 2)); // Point projected on track closest to O
-               
-            Vector Pnext = getPoint(t + drawingInterval);
-            Vector Pnexttn = getTangent(t + drawingInterval).cross(Vector.Z).normalized(); // Normal on tangent of next point
-            Vector Pnextout = Pnext.add(Pnexttn.scale(laneWidthTotal / 2)); // Point projected on track furthest from O
-            Vector Pnextin = Pnext.subtract(Pnexttn.scale(laneWidthTotal / 2)); // Point projected on track closest to O
-
-            gl.glMaterialfv(GL_FRONT_AND_BACK, GL_DIFFUSE, FloatBuffer.wrap(material.diffuse));
-            gl.glMaterialfv(GL_FRONT_AND_BACK, GL_SPECULAR, FloatBuffer.wrap(material.specular));
-            gl.glMaterialf(GL_FRONT_AND_BACK, GL_SHININESS, material.shininess);
-
-            gl.glLineWidth(2.5f);
-            gl.glBegin(GL_LINES);
-                Vector T = getTangent(t);
-                gl.glColor3f(1f, 0f, 0f);
-                // Tangent
-                gl.glVertex3d(P.add(T).x, P.add(T).y, 2);
-                gl.glVertex3d(P.subtract(T).x, P.subtract(T).y, 2);
-
-                // Tangent Normal
-                gl.glVertex3d(P.x, P.y, 2);
-                gl.glVertex3d(P.add(TN).x, P.add(TN).y, 2);
-
-                gl.glColor3f(0.1f, 0.2f, 0.3f);
-            gl.glEnd();
-
-            Textures.track.bind(gl);
-            gl.glBegin(GL2.GL_TRIANGLE_STRIP); // https://en.wikipedia.org/wiki/Triangle_strip
-            gl.glNormal3d(TN.x(), TN.y(), TN.z());
-
-            // Top horizontal triangle
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 0, 0);
-                gl.glVertex3d(Pin.x, Pin.y, 1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 1, 0);
-                gl.glVertex3d(Pout.x, Pout.y, 1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 0, 1);
-                gl.glVertex3d(Pnextin.x, Pnextin.y, 1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 1, 1);
-                gl.glVertex3d(Pnextout.x, Pnextout.y, 1);
-                gl.glEnd();
-
-            Textures.brick.bind(gl);
-            gl.glBegin(GL2.GL_TRIANGLE_STRIP); // https://en.wikipedia.org/wiki/Triangle_strip
-            gl.glNormal3d(TN.x(), TN.y(), TN.z());
-
-            // Inside vertical triangle
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 0, 0);
-                gl.glVertex3d(Pin.x, Pin.y, -1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 0, 1);
-                gl.glVertex3d(Pin.x, Pin.y, 1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 1, 0);
-                gl.glVertex3d(Pnextin.x, Pnextin.y, -1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 1, 1);
-                gl.glVertex3d(Pnextin.x, Pnextin.y, 1);
-            gl.glEnd();
-
-            gl.glBegin(GL2.GL_TRIANGLE_STRIP);
-            gl.glNormal3d(TN.x(), TN.y(), TN.z());
-
-            // Outside vertical triangle
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 0, 0);
-                gl.glVertex3d(Pout.x, Pout.y, -1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 0, 1);
-                gl.glVertex3d(Pout.x, Pout.y, 1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 1, 0);
-                gl.glVertex3d(Pnextout.x, Pnextout.y, -1);
-                gl.glMultiTexCoord2d(GL_TEXTURE0, 1, 1);
-                gl.glVertex3d(Pnextout.x, Pnextout.y, 1);
-            gl.glEnd();
-        }  
-        gl.glPopMatrix();
+
+        // Top horizontal surface, inside and outside vertical walls, two
+        // vertices per cross section
+        int n = 0;
+        for (int strip = 0; strip < 3; strip++) {
+            for (int r = 0; r < runs; r++) {
+                drawFirst[n] = stripFirst[strip] + 2 * runStart[r];
+                drawCount[n] = 2 * (runEnd[r] - runStart[r] + 1);
+                n++;
+            }
+        }
+        mesh.multiDraw(gl, GL_TRIANGLE_STRIP, drawFirst, drawCount, n);
+
+        mesh.unbind(gl);
+    }
+
+    /**
+     * Collects the runs of adjacent segments in the frustum into runStart
+     * and runEnd and returns their number.
+     */
+    private int findVisibleRuns() {
+        int runs = 0;
+        boolean open = false;
+        for (int k = 0; k < segments; k++) {
+            int b = 6 * k;
+            boolean visible = frustum.intersectsBox(segmentBounds[b], segmentBounds[b + 1],
+                    segmentBounds[b + 2], segmentBounds[b + 3], segmentBounds[b + 4], segmentBounds[b + 5]);
+            if (visible && !open) {
+                runStart[runs] = k * SEGMENT_STEPS;
+                runs++;
+            }
+            if (visible) {
+                runEnd[runs - 1] = Math.min((k + 1) * SEGMENT_STEPS, steps);
+            }
+            open = visible;
+        }
+        return runs;
+    }
+
+    /**
+     * Tessellates the track surface, the inner and outer wall and the
+     * tangent lines into the retained mesh.
+     */
+    private void buildMesh(GL2 gl) {
+        steps = Math.round(1f / drawingInterval);
+        Mesh.Builder builder = new Mesh.Builder(1);
+
+        // Center points and normals on the tangent, T x Z, at every step
+        double[] px = new double[steps + 1];
+        double[] py = new double[steps + 1];
+        double[] nx = new double[steps + 1];
+        double[] ny = new double[steps + 1];
+        for (int i = 0; i <= steps; i++) {
+            double t = (double) i / steps;
+            getPoint(t, point); // P.z = 1
+            getTangent(t, tangent);
+            double l = Math.sqrt(tangent.x * tangent.x + tangent.y * tangent.y);
+            px[i] = point.x;
+            py[i] = point.y;
+            nx[i] = tangent.y / l;
+            ny[i] = -tangent.x / l;
+        }
+        double half = laneWidthTotal / 2;
+
+        // Bounds of the segments, covering the surface and the walls from
+        // z = -1 and the tangent lines up to z = 2, which reach a unit
+        // from the center line.
+        segments = (steps + SEGMENT_STEPS - 1) / SEGMENT_STEPS;
+        segmentBounds = new double[6 * segments];
+        double reach = Math.max(half, 1);
+        for (int k = 0; k < segments; k++) {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = k * SEGMENT_STEPS; i <= Math.min((k + 1) * SEGMENT_STEPS, steps); i++) {
+                minX = Math.min(minX, px[i]);
+                minY = Math.min(minY, py[i]);
+                maxX = Math.max(maxX, px[i]);
+                maxY = Math.max(maxY, py[i]);
+            }
+            int b = 6 * k;
+            segmentBounds[b] = minX - reach;
+            segmentBounds[b + 1] = minY - reach;
+            segmentBounds[b + 2] = -1;
+            segmentBounds[b + 3] = maxX + reach;
+            segmentBounds[b + 4] = maxY + reach;
+            segmentBounds[b + 5] = 2;
+        }
+        runStart = new int[segments];
+        runEnd = new int[segments];
+        drawFirst = new int[3 * segments];
+        drawCount = new int[3 * segments];
+
+        // Top horizontal surface, the texture repeats once per step
+        builder.setAttribute(0, Textures.TRACK);
+        stripFirst[0] = builder.getVertexCount();
+        for (int i = 0; i <= steps; i++) {
+            // Points projected on the track closest to and furthest from O
+            builder.vertex(px[i] - nx[i] * half, py[i] - ny[i] * half, 1, nx[i], ny[i], 0, 0, i);
+            builder.vertex(px[i] + nx[i] * half, py[i] + ny[i] * half, 1, nx[i], ny[i], 0, 1, i);
+        }
+
+        // Inside vertical wall
+        builder.setAttribute(0, Textures.BRICK);
+        stripFirst[1] = builder.getVertexCount();
+        for (int i = 0; i <= steps; i++) {
+            builder.vertex(px[i] - nx[i] * half, py[i] - ny[i] * half, -1, nx[i], ny[i], 0, i, 0);
+            builder.vertex(px[i] - nx[i] * half, py[i] - ny[i] * half, 1, nx[i], ny[i], 0, i, 1);
+        }
+
+        // Outside vertical wall
+        stripFirst[2] = builder.getVertexCount();
+        for (int i = 0; i <= steps; i++) {
+            builder.vertex(px[i] + nx[i] * half, py[i] + ny[i] * half, -1, nx[i], ny[i], 0, i, 0);
+            builder.vertex(px[i] + nx[i] * half, py[i] + ny[i] * half, 1, nx[i], ny[i], 0, i, 1);
+        }
+
+        // Tangent and tangent normal lines
+        builder.setAttribute(0, Textures.TRACK);
+        linesFirst = builder.getVertexCount();
+        for (int i = 0; i < steps; i++) {
+            getTangent((double) i / steps, tangent);
+            builder.vertex(px[i] + tangent.x, py[i] + tangent.y, 2, 0, 0, 1, 0, 0);
+            builder.vertex(px[i] - tangent.x, py[i] - tangent.y, 2, 0, 0, 1, 0, 0);
+            builder.vertex(px[i], py[i], 2, 0, 0, 1, 0, 0);
+            builder.vertex(px[i] + nx[i], py[i] + ny[i], 2, 0, 0, 1, 0, 0);
+        }
+
+        // Texture coordinates run along the whole track, the array
+        // texture repeats.
+        mesh.upload(gl, builder);
+
+        meshInterval = drawingInterval;
     }
     
     /**
@@ -114,13 +264,24 @@ abstract class RaceTrack {
      * Use this method to find the position of a robot on the track.
      */
     public Vector getLanePoint(int lane, double t){
-        Vector P = getPoint(t);
-        Vector TN = getTangent(t).cross(Vector.Z).normalized(); // Normal on tangent
+        Vec3 L = new Vec3();
+        getLanePoint(lane, t, L);
+        return L.toVector();
+    }
+    
+    /**
+     * Writes the center of a lane at 0 <= t < 1 into out, without
+     * allocating.
+     */
+    public void getLanePoint(int lane, double t, Vec3 out) {
+        getPoint(t, out);
+        getTangent(t, tangent);
         
-        Vector Pin = P.subtract(TN.scale(laneWidthTotal / 2)); // Point projected on track closest to O
-        Vector L = Pin.add(TN.scale( (lane + 0.5) * laneWidth)); // Point at the center of the lane
-                       
-        return new Vector(L.x, L.y, P.z);
+        // Normal on tangent in the xy plane, T x Z
+        double l = Math.sqrt(tangent.x * tangent.x + tangent.y * tangent.y);
+        double offset = (lane + 0.5) * laneWidth - laneWidthTotal / 2;
+        out.x += tangent.y / l * offset;
+        out.y -= tangent.x / l * offset;
     }
     
     /**
@@ -129,14 +290,110 @@ abstract class RaceTrack {
      */
     public Vector getLaneTangent(int lane, double t){
         // Compute tangent between two near points
-        Vector L1 = getLanePoint(lane, t);
-        Vector L2 = getLanePoint(lane, t + 0.001);
-        return L2.subtract(L1).normalized();
+        Vec3 L1 = new Vec3();
+        Vec3 L2 = new Vec3();
+        getLanePoint(lane, t, L1);
+        getLanePoint(lane, t + 0.001, L2);
+        return L2.subtract(L1).normalize().toVector();
+    }
+    
+    /**
+     * Returns the arc length table of this track, building it on first use.
+     */
+    protected ArcLengthTable getArcLength() {
+        if (arcLength == null) {
+            arcLength = new ArcLengthTable(this, ARC_LENGTH_SAMPLES);
+        }
+        return arcLength;
+    }
+    
+    /**
+     * Returns the total length of the center line of this track.
+     */
+    public double getLength() {
+        return getArcLength().getLength();
+    }
+    
+    /**
+     * Returns the point on the center line at the given distance along the
+     * track. Robots moving at constant distance steps move at constant speed.
+     */
+    public Vector getPointAtDistance(double distance) {
+        getArcLength().getPoint(distance, point);
+        return point.toVector();
+    }
+    
+    /**
+     * Returns the unit tangent on the center line at the given distance
+     * along the track.
+     */
+    public Vector getTangentAtDistance(double distance) {
+        getArcLength().getTangent(distance, tangent);
+        return tangent.toVector();
+    }
+    
+    /**
+     * Writes the center of a (possibly fractional) lane at the given
+     * distance along the track into out, without allocating.
+     */
+    public void getLanePointAtDistance(double lane, double distance, Vec3 out) {
+        ArcLengthTable table = getArcLength();
+        table.getPoint(distance, out);
+        table.getTangent(distance, tangent);
+        
+        // Normal on tangent in the xy plane, T x Z
+        double l = Math.sqrt(tangent.x * tangent.x + tangent.y * tangent.y);
+        double offset = (lane + 0.5) * laneWidth - laneWidthTotal / 2;
+        out.x += tangent.y / l * offset;
+        out.y -= tangent.x / l * offset;
+    }
+    
+    /**
+     * Writes the unit tangent of a lane at the given distance along the
+     * track into out, without allocating. Lanes are parallel to the center
+     * line, so their tangent is the horizontal part of its tangent.
+     */
+    public void getLaneTangentAtDistance(double lane, double distance, Vec3 out) {
+        getArcLength().getTangent(distance, out);
+        out.z = 0;
+        out.normalize();
+    }
+    
+    /**
+     * Returns the center of a lane at the given distance along the track.
+     * Use this method to find the position of a robot on the track.
+     */
+    public Vector getLanePointAtDistance(double lane, double distance) {
+        getLanePointAtDistance(lane, distance, point);
+        return point.toVector();
+    }
+    
+    /**
+     * Returns the tangent of a lane at the given distance along the track.
+     * Use this method to find the orientation of a robot on the track.
+     */
+    public Vector getLaneTangentAtDistance(double lane, double distance) {
+        getLaneTangentAtDistance(lane, distance, point);
+        return point.toVector();
     }
     
     // Returns a point on the test track at 0 <= t < 1.
-    protected abstract Vector getPoint(double t);
+    protected Vector getPoint(double t) {
+        Vec3 P = new Vec3();
+        getPoint(t, P);
+        return P.toVector();
+    }
 
     // Returns a tangent on the test track at 0 <= t < 1.
-    protected abstract Vector getTangent(double t);
+    protected Vector getTangent(double t) {
+        Vec3 T = new Vec3();
+        getTangent(t, T);
+        return T.toVector();
+    }
+
+    // Writes a point on the test track at 0 <= t < 1 into out.
+    protected abstract void getPoint(double t, Vec3 out);
+
+    // Writes a unit tangent on the test track at 0 <= t < 1 into out.
+    protected abstract void getTangent(double t, Vec3 out);
 }
@@ -0,0 +1,182 @@
+package robotrace;
+
+import java.util.Arrays;
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Collects the draws of a frame and issues them sorted by their state, so
+ * that every program, texture and material is set once per frame.
+ *
+ * A draw is submitted with the program, texture and material it needs;
+ * the queue sets those and the draw itself only issues draw calls and
+ * state that is its own. Opaque draws come before translucent ones and
+ * draws with the same state keep the order they were submitted in.
+ *
+ * Draws are objects kept by their subsystem, so that a frame allocates
+ * nothing.
+ */
+class RenderQueue {
+
+    /** Draw of a submitted item. */
+    interface Command {
+
+        void draw(GL2 gl);
+    }
+
+    /** Layers, drawn in order. */
+    public final static int OPAQUE = 0;
+    public final static int TRANSLUCENT = 1;
+
+    /** Texture of draws that do not sample a texture. */
+    public final static int NO_TEXTURE = 0;
+
+    /** Submitted items, in order of submission. */
+    private ShaderProgram[] programs = new ShaderProgram[16];
+    private int[] targets = new int[16];
+    private int[] textures = new int[16];
+    private Material[] materials = new Material[16];
+    private String[] passes = new String[16];
+    private Command[] commands = new Command[16];
+
+    /** Sort keys, with the submission index in the low bits. */
+    private long[] keys = new long[16];
+
+    /** Number of submitted items. */
+    private int count;
+
+    /**
+     * Submits a draw with the given program, or the fixed function
+     * pipeline if null, 2D texture on unit 0, or NO_TEXTURE, and material,
+     * which is set on programs with materialDiffuse and materialShininess
+     * uniforms, or null. The draw is timed as the given profiler pass.
+     */
+    public void submit(int layer, ShaderProgram program, int texture, Material material,
+            String pass, Command command) {
+        submit(layer, program, GL_TEXTURE_2D, texture, material, pass, command);
+    }
+
+    /**
+     * Submits a draw like {@link #submit(int, ShaderProgram, int, Material,
+     * String, Command)}, with a texture of the given target, such as
+     * GL_TEXTURE_2D_ARRAY.
+     */
+    public void submit(int layer, ShaderProgram program, int target, int texture, Material material,
+            String pass, Command command) {
+        if (count == keys.length) {
+            int capacity = 2 * count;
+            programs = Arrays.copyOf(programs, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            textures = Arrays.copyOf(textures, capacity);
+            materials = Arrays.copyOf(materials, capacity);
+            passes = Arrays.copyOf(passes, capacity);
+            commands = Arrays.copyOf(commands, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+        programs[count] = program;
+        targets[count] = target;
+        textures[count] = texture;
+        materials[count] = material;
+        passes[count] = pass;
+        commands[count] = command;
+
+        int programID = program == null ? 0 : program.getProgramID() + 1;
+        int materialID = material == null ? 0 : material.ordinal() + 1;
+        keys[count] = (long) layer << 62
+                | (long) (programID & 0xff) << 54
+                | (long) (texture & 0xffffff) << 30
+                | (long) (materialID & 0xff) << 22
+                | count;
+        count++;
+    }
+
+    /**
+     * Issues all submitted draws, sorted by their state, and empties the
+     * queue. The program is reset to the fixed function pipeline after.
+     */
+    public void flush(GL2 gl, FrameProfiler profiler) {
+        sort();
+        draw(gl, profiler);
+        clear();
+    }
+
+    /**
+     * Sorts the submitted draws by their state, once before drawing them
+     * with {@link #draw}.
+     */
+    public void sort() {
+        Arrays.sort(keys, 0, count);
+    }
+
+    /**
+     * Issues all submitted draws in the order of the last {@link #sort},
+     * keeping them, so that several views can draw the same draws. The
+     * program is reset to the fixed function pipeline after.
+     */
+    public void draw(GL2 gl, FrameProfiler profiler) {
+        // Nothing is known of the state on entry.
+        boolean first = true;
+        ShaderProgram program = null;
+        int texture = NO_TEXTURE;
+        Material material = null;
+        String pass = null;
+
+        for (int k = 0; k < count; k++) {
+            int i = (int) (keys[k] & 0x3fffff);
+
+            if (profiler != null && !passes[i].equals(pass)) {
+                if (pass != null) {
+                    profiler.end(gl);
+                }
+                pass = passes[i];
+                profiler.begin(gl, pass);
+            }
+
+            boolean programChanged = first || programs[i] != program;
+            if (programChanged) {
+                program = programs[i];
+                if (program == null) {
+                    gl.glUseProgram(0);
+                } else {
+                    program.useProgram(gl);
+                }
+                FrameProfiler.countStateChanges(1);
+            }
+            if (textures[i] != NO_TEXTURE && textures[i] != texture) {
+                texture = textures[i];
+                gl.glBindTexture(targets[i], texture);
+                FrameProfiler.countStateChanges(1);
+            }
+            if (materials[i] != null && (programChanged || materials[i] != material)) {
+                material = materials[i];
+                if (program != null && program.hasUniform("materialDiffuse")) {
+                    program.setUniform(gl, "materialDiffuse", material.diffuse);
+                    program.setUniform(gl, "materialShininess", material.shininess);
+                }
+            }
+            first = false;
+
+            commands[i].draw(gl);
+        }
+
+        if (profiler != null && pass != null) {
+            profiler.end(gl);
+        }
+        if (program != null) {
+            gl.glUseProgram(0);
+        }
+    }
+
+    /**
+     * Empties the queue without drawing.
+     */
+    public void clear() {
+        // Drop the references to what was submitted.
+        Arrays.fill(programs, 0, count, null);
+        Arrays.fill(materials, 0, count, null);
+        Arrays.fill(passes, 0, count, null);
+        Arrays.fill(commands, 0, count, null);
+        count = 0;
+    }
+}
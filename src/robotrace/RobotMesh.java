@@ -0,0 +1,134 @@
+package robotrace;
+
+/**
+ * Bakes the parts of a robot into a single triangle mesh.
+ *
+ * Every vertex carries the bone it moves with and the texture it is drawn
+ * with as its generic attribute, so that all parts of all robots can be
+ * drawn with one draw call. The parts and their transformations are those
+ * of the former per robot drawing code, in the local frame of a robot:
+ * x forward, y to the left and z up.
+ *
+ * Robots far away are drawn with coarser levels of detail: the limbs as
+ * boxes, and finally an impostor of two crossed textured quads.
+ */
+class RobotMesh {
+
+    /** Bones of the robot, rotating around the y axis through their pivot. */
+    public final static int BODY = 0;
+    public final static int LEFT_ARM = 1;
+    public final static int RIGHT_ARM = 2;
+    public final static int LEFT_LEG = 3;
+    public final static int RIGHT_LEG = 4;
+
+    /**
+     * Bone palette: for every bone the pivot (x, y, z) it rotates around,
+     * and its rotation in radians per unit of limb swing (w).
+     */
+    public final static float[] BONES = {
+        0, 0, 0, 0,             // body
+        0, 0, 0, -1 / 3.5f,     // left arm
+        0, 0, 0, 1 / 3.5f,      // right arm
+        0, 0, 0, -0.25f,        // left leg
+        0, 0, 0, 0.25f          // right leg
+    };
+
+    /** Levels of detail: the full robot, boxes and the impostor. */
+    public final static int FULL = 0;
+    public final static int BOXES = 1;
+    public final static int IMPOSTOR = 2;
+    public final static int LEVELS = 3;
+
+    /** Corners of the textured quad on the front of a unit cube. */
+    private final static double[][] FRONT = {
+        {0.51, -0.51, -0.5}, {0.51, -0.51, 0.5}, {0.51, 0.51, -0.5}, {0.51, 0.51, 0.5}
+    };
+
+    /**
+     * Appends the triangles of the robot at the given level of detail to
+     * the builder, which must have a generic attribute of two floats.
+     */
+    public static void bake(Mesh.Builder builder, int level) {
+        if (level == IMPOSTOR) {
+            bakeImpostor(builder);
+            return;
+        }
+
+        // The GLUT shapes have no texture coordinates, so they used the
+        // last texture coordinate of the quads drawn before.
+        builder.setTexCoord(1, 1);
+
+        builder.setAttribute(0, BODY);
+        builder.setAttribute(1, Textures.HEAD);
+        bakeBox(builder, new Matrix4().translate(0, 0, 1).scale(0.5, 1, 1));
+
+        builder.setAttribute(1, Textures.TORSO);
+        bakeBox(builder, new Matrix4().scale(0.5, 1, 1));
+
+        builder.setAttribute(0, LEFT_ARM);
+        bakeArm(builder, 1, level);
+        builder.setAttribute(0, RIGHT_ARM);
+        bakeArm(builder, -1, level);
+
+        builder.setAttribute(1, Textures.LEGS);
+        builder.setAttribute(0, LEFT_LEG);
+        bakeBox(builder, new Matrix4().translate(0, 0.275, -1).scale(0.5, 0.45, 1));
+        builder.setAttribute(0, RIGHT_LEG);
+        bakeBox(builder, new Matrix4().translate(0, -0.275, -1).scale(0.5, 0.45, 1));
+    }
+
+    /**
+     * Bakes a unit cube with a textured quad on its front.
+     */
+    private static void bakeBox(Mesh.Builder builder, Matrix4 matrix) {
+        builder.cube(matrix, 1);
+        builder.quad(matrix, 1, 0, 0, FRONT[0], FRONT[1], FRONT[2], FRONT[3]);
+    }
+
+    /**
+     * Bakes the left (side = 1) or right (side = -1) arm, of boxes around
+     * its parts at level BOXES.
+     */
+    private static void bakeArm(Mesh.Builder builder, int side, int level) {
+        if (level == BOXES) {
+            builder.cube(new Matrix4().translate(0.18, side * 0.7, -.18).rotate(22.5, 0, 1, 0)
+                    .scale(0.39, 0.16, 0.25), 1);
+            builder.cube(new Matrix4().translate(0, side * 0.7, 0.14).scale(0.25, 0.16, 0.39), 1);
+            builder.cube(new Matrix4().translate(0, side * 0.375, 0.325).scale(0.346, 0.86, 0.325), 1);
+            return;
+        }
+
+        // Lower arm, with an initial rotation to orient it correctly
+        builder.cylinder(new Matrix4().translate(0, side * 0.7, -.11).scale(0.5, 0.325, 0.5)
+                .rotate(112.5, 0, 1, 0), 0.25, 0.775, 10, 10);
+
+        // Elbow
+        builder.sphere(new Matrix4().translate(0, side * 0.7, -.1).scale(0.5, 0.375, 0.425),
+                0.25, 10, 10);
+
+        // Upper arm
+        builder.cylinder(new Matrix4().translate(0, side * 0.7, -.05).scale(0.5, 0.325, 0.5),
+                0.25, 0.775, 10, 10);
+
+        // Shoulder
+        builder.sphere(new Matrix4().translate(0, side * 0.375, 0.325).scale(0.346, 0.855, 0.325),
+                0.5, 10, 10);
+    }
+
+    /**
+     * Bakes the impostor: the head, torso and legs textures on a quad
+     * across the robot and on one along it, which does not animate.
+     */
+    private static void bakeImpostor(Mesh.Builder builder) {
+        builder.setAttribute(0, BODY);
+        int[] layers = {Textures.LEGS, Textures.TORSO, Textures.HEAD};
+        for (int i = 0; i < layers.length; i++) {
+            builder.setAttribute(1, layers[i]);
+            double z = i - 1;
+            builder.quad(new Matrix4().translate(0, 0, z).scale(0, 1.2, 1),
+                    1, 0, 0, FRONT[0], FRONT[1], FRONT[2], FRONT[3]);
+            builder.quad(new Matrix4().translate(0, 0, z).rotate(90, 0, 0, 1).scale(0, 0.5, 1),
+                    1, 0, 0, FRONT[0], FRONT[1], FRONT[2], FRONT[3]);
+        }
+    }
+}
@@ -3,13 +3,15 @@ package robotrace;
 
 import java.awt.*;
 
-import static java.lang.Math.sin;
 import static javax.media.opengl.GL.GL_LINES;
 
 import static javax.media.opengl.GL2.*;
 import static robotrace.ShaderPrograms.*;
 
 import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import static javax.media.opengl.GL.GL_COLOR_BUFFER_BIT;
@@ -82,6 +84,14 @@ import static javax.media.opengl.fixedfunc.GLMatrixFunc.GL_PROJECTION;
  */
 public class RobotRace extends Base {
     
+    /** Position of the light source in view coordinates, at the camera. */
+    private final static float[] LIGHT_POSITION = {0f, 0f, 0f, 1f};
+    
+    /** Height of the floodlights above the track, their reach and their lane on either side. */
+    private final static double FLOODLIGHT_HEIGHT = 3;
+    private final static double FLOODLIGHT_RADIUS = 8;
+    private final static double[] FLOODLIGHT_LANES = {5, -2};
+    
     /** Array of the four robots. */
     private final Robot[] robots;
     
@@ -94,6 +104,74 @@ public class RobotRace extends Base {
     /** Instance of the terrain. */
     private final Terrain terrain;
     
+    /** Draws all robots with one instanced draw call. */
+    private final RobotRenderer robotRenderer = new RobotRenderer();
+    
+    /** Draws of the scene, sorted by state. */
+    private final RenderQueue renderQueue = new RenderQueue();
+    
+    /** Point lights, binned into tiles of every view. */
+    private final LightManager lights = new LightManager();
+    
+    /** Track the floodlights stand along, -1 before they are placed. */
+    private int floodlightTrack = -1;
+    
+    /** Projection and camera of the view being set up, the window or the television. */
+    private final Matrix4 projection = new Matrix4();
+    private final Matrix4 modelview = new Matrix4();
+    
+    /** What the camera and the television camera see, set with the matrices of their view. */
+    private final Frustum frustum = new Frustum();
+    private final Frustum televisionFrustum = new Frustum();
+    
+    /** Draws of the axis frame and the television. */
+    private final RenderQueue.Command axisFrameCommand = gl -> drawAxisFrame();
+    private final RenderQueue.Command televisionPoleCommand = this::drawTelevisionPole;
+    private final RenderQueue.Command televisionScreenCommand = this::drawTelevisionScreen;
+    private final RenderQueue.Command televisionBillboardCommand = this::drawTelevisionBillboard;
+    private final RenderQueue.Command televisionQueryCommand = gl -> this.television.drawQuery(gl);
+    
+    /** Fixed time step simulation of the robots racing on the selected track. */
+    private final SimulationLoop simulationLoop;
+    
+    /** Animation time at the last frame, to detect a restart. */
+    private float lastAnimationTime;
+    
+    /** Whether the race follows gs.tAnim rather than the wall clock. */
+    private boolean fixedClock;
+    
+    /** Recorded race played back at gs.tAnim instead of the simulation, null when live. */
+    private RaceReplay replay;
+    
+    /** Records the live view or the television, null when not recording. */
+    private FrameCapture capture;
+    private boolean captureTelevision;
+    
+    /** Whether the scene is being drawn onto the television. */
+    private boolean drawingTelevision;
+    
+    /** Measures the passes of every frame, null when not profiling. */
+    private FrameProfiler profiler;
+    
+    /**
+     * Whether a frame was drawn since the profiler began the last one.
+     * Resizing the window sets the view without drawing, which must not
+     * count as a frame.
+     */
+    private boolean frameDrawn = true;
+    
+    /** Width over height of the television screen. */
+    private final static double TELEVISION_ASPECT = 8.0 / 3;
+    
+    /** Views following every robot instead of the camera, null if off. */
+    private MultiView multiView;
+    
+    /** Decides when and how large the television is rendered. */
+    private TelevisionBudget television;
+    
+    /** Part of the texture holding the television, in texture coordinates. */
+    private double televisionScale = 1;
+    
     /** Render-to-texture variables. */
     private int[] texID = {0};
     private int[] fboID = {0};
@@ -135,7 +213,30 @@ public class RobotRace extends Base {
         camera = new Camera();
         
         // Initialize the race tracks
-        raceTracks = new RaceTrack[2];
+        raceTracks = createRaceTracks();
+        
+        // Initialize the race, higher numbered robots run faster
+        double[] speeds = new double[robots.length];
+        int[] lanes = new int[robots.length];
+        for (int i = 0; i < robots.length; i++) {
+            speeds[i] = 0.05 * (i + 0.2) * raceTracks[gs.trackNr].getLength();
+            lanes[i] = robots[i].lane;
+        }
+        RaceSimulation simulation = new RaceSimulation(raceTracks[gs.trackNr], speeds, lanes);
+        
+        // Robot 0 grows and shrinks between 3 and 6
+        simulation.setHeight(0, 4.5, 1.5);
+        simulationLoop = new SimulationLoop(simulation);
+        
+        // Initialize the terrain
+        terrain = new Terrain(gs);
+    }
+    
+    /**
+     * Creates the race tracks, selected by gs.trackNr.
+     */
+    static RaceTrack[] createRaceTracks() {
+        RaceTrack[] raceTracks = new RaceTrack[2];
         
         // Track 1
         raceTracks[0] = new ParametricTrack();
@@ -194,11 +295,7 @@ new Vector(3, 16, 1)
 
             }
         );
-        
-        
-        
-        // Initialize the terrain
-        terrain = new Terrain(gs);
+        return raceTracks;
     }
     
     /**
@@ -224,19 +321,143 @@ new Vector(3, 16, 1)
         gl.glEnable(GL_NORMALIZE);
         
 	    // Try to load four textures, add more if you like in the Textures class
-        Textures.loadTextures();
+        Textures.loadTextures(gl);
         reportError("reading textures");
         
         // Try to load and set up shader programs
         ShaderPrograms.setupShaders(gl, glu);
         reportError("shaderProgram");
         
+        // Bake the robot mesh
+        robotRenderer.initialize(gl, robotShader);
+        reportError("robotRenderer");
+        
+        lights.initialize(gl);
+        reportError("lights");
+        
         initializeFob();
+        television = new TelevisionBudget(fboTexSize, Integer.getInteger("robotrace.television.interval", 2));
+        television.initialize(gl);
+        
+        // Run the race at a fixed rate, independent of the frame rate.
+        initializeReplay();
+        if (!fixedClock && replay == null) {
+            simulationLoop.start();
+            initializeCapture();
+        }
+        initializeProfiler();
+        initializeMultiView();
 
         gs.vDist = 30;
         gs.phi = 0.2f;
     }
     
+    /**
+     * Starts recording when the system property robotrace.record names a
+     * directory or raw video file. With robotrace.record.source set to
+     * television, the television is recorded instead of the view.
+     */
+    private void initializeCapture() {
+        String record = System.getProperty("robotrace.record");
+        if (record == null || capture != null) {
+            return;
+        }
+        captureTelevision = "television".equals(System.getProperty("robotrace.record.source"));
+        
+        // Drop frames rather than stall the live view on a busy encoder.
+        final FrameCapture liveCapture = new FrameCapture(new File(record), false);
+        Runtime.getRuntime().addShutdownHook(new Thread(liveCapture::close));
+        capture = liveCapture;
+    }
+    
+    /**
+     * Plays back a recorded race when the system property robotrace.replay
+     * names a replay file, else records the race when the system property
+     * robotrace.replay.record does, see {@link RaceRecorder}.
+     */
+    private void initializeReplay() {
+        String file = System.getProperty("robotrace.replay");
+        if (file != null && replay == null) {
+            try {
+                replay = new RaceReplay(new File(file));
+                for (int i = 0; i < Math.min(robots.length, replay.getCount()); i++) {
+                    robots[i].phase = replay.getPhase(i);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+        
+        String record = System.getProperty("robotrace.replay.record");
+        if (record == null) {
+            return;
+        }
+        float[] phases = new float[robots.length];
+        for (int i = 0; i < robots.length; i++) {
+            phases[i] = robots[i].phase;
+        }
+        try {
+            final RaceRecorder recorder = new RaceRecorder(new File(record), SimulationLoop.TICK_RATE,
+                    gs.trackNr, phases);
+            Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+            simulationLoop.setRecorder(recorder);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Starts profiling when the system property robotrace.profile is set,
+     * showing an overlay. When it names a .csv or .json file, every frame
+     * or a summary is exported to it as well.
+     */
+    private void initializeProfiler() {
+        String profile = System.getProperty("robotrace.profile");
+        if (profile == null || profiler != null) {
+            return;
+        }
+        boolean export = profile.endsWith(".csv") || profile.endsWith(".json");
+        profiler = new FrameProfiler(export ? new File(profile) : null);
+    }
+    
+    /**
+     * Replaces the camera by a split screen of views following the robots
+     * when the system property robotrace.views gives their number.
+     */
+    private void initializeMultiView() {
+        int views = Integer.getInteger("robotrace.views", 0);
+        if (views > 0 && multiView == null) {
+            multiView = new MultiView(views);
+        }
+    }
+    
+    /**
+     * Begins the pass with the given name, if profiling.
+     */
+    private void beginPass(String name) {
+        if (profiler != null) {
+            profiler.begin(gl, passName(name));
+        }
+    }
+    
+    /**
+     * Returns the profiler name of the given pass. Passes drawing the
+     * television are prefixed with "tv.".
+     */
+    private String passName(String name) {
+        return drawingTelevision ? "tv." + name : name;
+    }
+    
+    /**
+     * Ends the innermost pass, if profiling.
+     */
+    private void endPass() {
+        if (profiler != null) {
+            profiler.end(gl);
+        }
+    }
+    
     private void initializeFob() {
          // create a frame buffer object
         gl.glGenFramebuffers(1, fboID, 0);
@@ -248,8 +469,8 @@ new Vector(3, 16, 1)
         gl.glGenTextures (1, texID, 0);
         gl.glBindTexture(GL.GL_TEXTURE_2D, texID[0]);
 
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR);
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
         gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
         gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
         int level = 0;
@@ -292,7 +513,11 @@ new Vector(3, 16, 1)
         }
     }
     
-    private void renderToTexture() {
+    /**
+     * Renders the scene as seen by the television camera into the lower
+     * left size by size texels of the television texture.
+     */
+    private void renderToTexture(int size) {
         int camMode = gs.camMode;
         float vDist = gs.vDist;
         gs.camMode = 1;
@@ -300,30 +525,30 @@ new Vector(3, 16, 1)
         
         gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, fboID[0]);
     
-        gl.glViewport(0, 0, gs.w, gs.h);
-        
-        // Set projection matrix.
-        gl.glMatrixMode(GL_PROJECTION);
-        gl.glLoadIdentity();
-
-        // Set the perspective.
-        glu.gluPerspective(45, (float)gs.w / (float)gs.h, 0.1*gs.vDist, 10*gs.vDist);
+        gl.glViewport(0, 0, size, size);
+        televisionScale = (double) size / fboTexSize;
         
-        // Set camera.
-        gl.glMatrixMode(GL_MODELVIEW);
-        gl.glLoadIdentity();
+        // Set the perspective, stretched back by the screen.
+        projection.identity().perspective(45, TELEVISION_ASPECT, 0.1*gs.vDist, 10*gs.vDist);
         
-        // Add light source
-        gl.glLightfv(GL_LIGHT0, GL_POSITION, new float[]{0f,0f,0f,1f}, 0);
-               
         // Update the view according to the camera mode and robot of interest.
         // For camera modes 1 to 4, determine which robot to focus on.
         camera.update(gs, robots[0]);
-        glu.gluLookAt(camera.eye.x(),    camera.eye.y(),    camera.eye.z(),
-                      camera.center.x(), camera.center.y(), camera.center.z(),
-                      camera.up.x(),     camera.up.y(),     camera.up.z());
+        modelview.identity().lookAt(camera.eye, camera.center, camera.up);
+        loadMatrices();
+        televisionFrustum.set(projection.m, modelview.m, size);
+        
+        // Add light source
+        setFrame(gl, camera.eye, LIGHT_POSITION);
+        lights.update(gl, projection.m, modelview.m, 0, 0, size, size);
         
+        drawingTelevision = true;
         drawScene();
+        drawingTelevision = false;
+        
+        if (capture != null && captureTelevision) {
+            capture.capture(gl, 0, 0, size, size);
+        }
         
         // unbind frame buffer
         gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, 0);
@@ -335,36 +560,154 @@ new Vector(3, 16, 1)
     
     
  
+    /**
+     * Lets the race follow the animation time instead of the wall clock,
+     * for deterministic rendering. Must be set before initialization.
+     */
+    void setFixedClock(boolean fixedClock) {
+        this.fixedClock = fixedClock;
+    }
+    
+    /**
+     * Places the robots according to the latest state of the simulation,
+     * which runs independently of the frame rate.
+     */
+    private void updateRobots() {
+        if (replay != null) {
+            replayRobots();
+            return;
+        }
+        
+        // The animation clock has been reset, restart the race.
+        if (gs.tAnim < lastAnimationTime) {
+            simulationLoop.restart();
+        }
+        lastAnimationTime = gs.tAnim;
+        
+        RaceTrack track = raceTracks[gs.trackNr];
+        simulationLoop.setTrack(track);
+        double time = simulationLoop.elapsed();
+        if (fixedClock) {
+            time = gs.tAnim;
+            simulationLoop.advanceTo(time);
+        }
+        RaceSnapshot snapshot = simulationLoop.sample(time);
+        for (int i = 0; i < robots.length; i++) {
+            double distance = snapshot.getDistance(i);
+            track.getLanePointAtDistance(snapshot.getLane(i), distance, robots[i].position);
+            track.getLaneTangentAtDistance(snapshot.getLane(i), distance, robots[i].direction);
+            robots[i].height = (float) snapshot.getHeight(i);
+        }
+    }
+    
+    /**
+     * Places the robots according to the recorded race at the animation
+     * time, on the track it was run on.
+     */
+    private void replayRobots() {
+        gs.trackNr = replay.getTrack();
+        RaceTrack track = raceTracks[gs.trackNr];
+        replay.sample(gs.tAnim);
+        for (int i = 0; i < Math.min(robots.length, replay.getCount()); i++) {
+            double distance = replay.getDistance(i);
+            track.getLanePointAtDistance(replay.getLane(i), distance, robots[i].position);
+            track.getLaneTangentAtDistance(replay.getLane(i), distance, robots[i].direction);
+            robots[i].height = (float) replay.getHeight(i);
+        }
+    }
+    
+    /**
+     * Places the floodlights along the selected track, evenly spread and
+     * alternating between its outer and inner side, when it changed. Their
+     * number is given by the system property robotrace.floodlights.
+     */
+    private void placeFloodlights() {
+        if (floodlightTrack == gs.trackNr) {
+            return;
+        }
+        floodlightTrack = gs.trackNr;
+        lights.clear();
+        
+        RaceTrack track = raceTracks[gs.trackNr];
+        int count = Integer.getInteger("robotrace.floodlights", 0);
+        Vec3 position = new Vec3();
+        for (int i = 0; i < count; i++) {
+            double lane = FLOODLIGHT_LANES[i % FLOODLIGHT_LANES.length];
+            track.getLanePointAtDistance(lane, i * track.getLength() / count, position);
+            position.z += FLOODLIGHT_HEIGHT;
+            lights.add(position, FLOODLIGHT_RADIUS, 1f, 0.9f, 0.7f);
+        }
+    }
+    
     /**
      * Configures the viewing transform.
      */
     @Override
     public void setView() {
-        renderToTexture();
+        if (profiler != null && frameDrawn) {
+            profiler.beginFrame(gl);
+            frameDrawn = false;
+        }
+        
+        // Swap in shaders edited since the last frame.
+        if (ShaderPrograms.update(gl, glu)) {
+            robotRenderer.setShader(gl, robotShader);
+        }
+        
+        beginPass("update");
+        updateRobots();
+        placeFloodlights();
+        endPass();
+        
+        if (multiView != null) {
+            multiView.update(robots, gs.w, gs.h);
+        }
+        
+        // Render the television only when it is seen, based on the last
+        // frame, except when recording it.
+        boolean refresh = television.update(gl, multiView != null ? multiView.getFrustum() : frustum);
+        if (capture != null && captureTelevision) {
+            television.setFullSize();
+            refresh = true;
+        }
+        if (refresh) {
+            beginPass("television");
+            renderToTexture(television.getSize());
+            endPass();
+        }
+        
+        // Follow every robot in its own view instead, see drawMultiView.
+        if (multiView != null) {
+            return;
+        }
         
         // Select part of window.
         gl.glViewport(0, 0, gs.w, gs.h);
         
-        // Set projection matrix.
-        gl.glMatrixMode(GL_PROJECTION);
-        gl.glLoadIdentity();
-
         // Set the perspective.
-        glu.gluPerspective(45, (float)gs.w / (float)gs.h, 0.1*gs.vDist, 10*gs.vDist);
+        projection.identity().perspective(45, (float)gs.w / (float)gs.h, 0.1*gs.vDist, 10*gs.vDist);
         
-        // Set camera.
-        gl.glMatrixMode(GL_MODELVIEW);
-        gl.glLoadIdentity();
-        
-        // Add light source
-        gl.glLightfv(GL_LIGHT0, GL_POSITION, new float[]{0f,0f,0f,1f}, 0);
-               
         // Update the view according to the camera mode and robot of interest.
         // For camera modes 1 to 4, determine which robot to focus on.
         camera.update(gs, robots[0]);
-        glu.gluLookAt(camera.eye.x(),    camera.eye.y(),    camera.eye.z(),
-                      camera.center.x(), camera.center.y(), camera.center.z(),
-                      camera.up.x(),     camera.up.y(),     camera.up.z());
+        modelview.identity().lookAt(camera.eye, camera.center, camera.up);
+        loadMatrices();
+        frustum.set(projection.m, modelview.m, gs.h);
+        
+        // Add light source
+        setFrame(gl, camera.eye, LIGHT_POSITION);
+        lights.update(gl, projection.m, modelview.m, 0, 0, gs.w, gs.h);
+    }
+    
+    /**
+     * Loads the projection and camera of the view being set up, so that
+     * they need not be read back from GL for culling and lighting.
+     */
+    private void loadMatrices() {
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glLoadMatrixd(projection.m, 0);
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glLoadMatrixd(modelview.m, 0);
     }
     
     /**
@@ -372,10 +715,16 @@ new Vector(3, 16, 1)
      */
     @Override
     public void drawScene() {
+        if (!drawingTelevision) {
+            frameDrawn = true;
+        }
+        if (multiView != null && !drawingTelevision) {
+            drawMultiView();
+            return;
+        }
 
-        robots[0].height = ((float)(sin(gs.tAnim) + 1 ) / 2 + 1) * 3;
-        gl.glUseProgram(defaultShader.getProgramID());
-        reportError("program");
+        beginPass("scene");
+        Frustum frustum = drawingTelevision ? televisionFrustum : this.frustum;
 
         // Draw hierarchy example.
         //drawHierarchy();
@@ -393,81 +742,135 @@ new Vector(3, 16, 1)
         
         gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
         
-        drawTelevision();
+        submitTelevision(frustum);
         
         // Draw the axis frame.
         if (gs.showAxes) {
-            drawAxisFrame();
-        }
-        
-        // Draw the (first) robot.
-        gl.glUseProgram(robotShader.getProgramID());
-        for(int i = 0; i < robots.length; i++) {
-            double t = (0.05 * (i + 0.2) * gs.tAnim) % 1;
-            robots[i].position = raceTracks[gs.trackNr].getLanePoint(robots[i].lane, t);
-            robots[i].direction = raceTracks[gs.trackNr].getLaneTangent(robots[i].lane, t);
-            robots[i].draw(gl, glu, glut, gs.tAnim, true);
-            
-            boolean canMoveLeft = robots[i].lane > 0; // The robot could move to the left if it is not already on the inner most lane.
-            for(int j = 0; j < robots.length; j++) { // Check the positions of the other robots
-                if (i == j) continue;
-                
-                double distance = Math.abs(robots[i].position.subtract(robots[j].position).length());
-                if (distance < 4 && robots[i].lane - 1 == robots[j].lane) {
-                    // The lane on the next is already taken and a switch is not possible
-                    canMoveLeft = false;
-                }
-                
-                if (distance < 4 && robots[i].lane == robots[j].lane) {
-                    // The fastest robot must move to the right or they hit eachother
-                    int movingRobot = i > j ? i : j; // Higher number walks faster
-                    robots[movingRobot].lane++;
-                }
-            }
-            
-            if(canMoveLeft) {
-                robots[i].lane--;
-            }
+            renderQueue.submit(RenderQueue.OPAQUE, defaultShader, RenderQueue.NO_TEXTURE, null,
+                    passName("axes"), axisFrameCommand);
         }
         
+        // Draw the robots.
+        robotRenderer.submit(renderQueue, robots, gs.tAnim, frustum, passName("robots"));
+        
         // Draw the race track.
-        gl.glUseProgram(trackShader.getProgramID());
-        raceTracks[gs.trackNr].draw(gl, glu, glut, Material.WOOD);
-        reportError("robot:");
+        raceTracks[gs.trackNr].submit(renderQueue, trackShader, Material.WOOD, frustum, passName("track"));
                 
         // Draw the terrain.
-        gl.glUseProgram(terrainShader.getProgramID());
-        terrain.draw(gl, glu, glut);
-        reportError("terrain:");
+        terrain.submit(renderQueue, terrainShader, camera.eye, frustum, passName("terrain"));
+        
+        // Draw everything, sorted by program, texture and material.
+        renderQueue.flush(gl, profiler);
+        reportError("scene:");
+        endPass();
+        
+        if (capture != null && !captureTelevision && !drawingTelevision) {
+            capture.capture(gl, 0, 0, gs.w, gs.h);
+        }
+        
+        if (profiler != null && !drawingTelevision) {
+            profiler.drawOverlay(gl, glut, gs.w, gs.h);
+        }
+    }
+    
+    /**
+     * Draws the race in every view of the split screen. The scene is
+     * submitted and sorted once and drawn again per view.
+     */
+    private void drawMultiView() {
+        beginPass("scene");
+        
+        gl.glClearColor(1f, 1f, 1f, 0f);
+        gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+        gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
+        
+        Frustum frustum = multiView.getFrustum();
+        submitTelevision(frustum);
+        if (gs.showAxes) {
+            renderQueue.submit(RenderQueue.OPAQUE, defaultShader, RenderQueue.NO_TEXTURE, null,
+                    passName("axes"), axisFrameCommand);
+        }
+        robotRenderer.submit(renderQueue, robots, gs.tAnim, frustum, passName("robots"));
+        raceTracks[gs.trackNr].submit(renderQueue, trackShader, Material.WOOD, frustum, passName("track"));
+        terrain.submit(renderQueue, terrainShader, multiView.getEye(), frustum, passName("terrain"));
+        renderQueue.sort();
+        
+        for (int i = 0; i < multiView.getViewCount(); i++) {
+            multiView.begin(gl, i);
+            setFrame(gl, multiView.getEye(), LIGHT_POSITION);
+            multiView.updateLights(gl, lights, i);
+            renderQueue.draw(gl, profiler);
+        }
+        renderQueue.clear();
+        multiView.end(gl, gs.w, gs.h);
+        reportError("multiView:");
+        endPass();
+        
+        if (capture != null && !captureTelevision) {
+            capture.capture(gl, 0, 0, gs.w, gs.h);
+        }
+        
+        if (profiler != null) {
+            profiler.drawOverlay(gl, glut, gs.w, gs.h);
+        }
     }
     
-    public void drawTelevision() {
+    /**
+     * Submits the draws of the television: the pole, the two sides of the
+     * screen showing the rendered texture and the billboard holding them,
+     * unless it is outside the given frustum.
+     */
+    private void submitTelevision(Frustum frustum) {
         //Vector P = raceTracks[gs.trackNr].getLanePoint(4, 0); 
         //Vector T = raceTracks[gs.trackNr].getLaneTangent(4,0);
+        
+        // Pole and billboard, see the draws below.
+        if (!frustum.intersectsBox(12.5, -4, -1, 14, 4, 13)) {
+            return;
+        }
 
-        gl.glUseProgram(terrainShader.getProgramID());
-        Textures.pole.bind(gl);
-
+        String pass = passName("screen");
+        renderQueue.submit(RenderQueue.OPAQUE, terrainShader, RenderQueue.NO_TEXTURE, null,
+                pass, televisionPoleCommand);
+        renderQueue.submit(RenderQueue.OPAQUE, null, texID[0], null,
+                pass, televisionScreenCommand);
+        renderQueue.submit(RenderQueue.OPAQUE, null, RenderQueue.NO_TEXTURE, null,
+                pass, televisionBillboardCommand);
+        
+        // Find out whether the screen is hidden, after the opaque geometry.
+        // A query in the split screen would only see the first view.
+        if (!drawingTelevision && multiView == null) {
+            renderQueue.submit(RenderQueue.TRANSLUCENT, null, RenderQueue.NO_TEXTURE, null,
+                    pass, televisionQueryCommand);
+        }
+    }
+    
+    /**
+     * Draws the pole carrying the screen (bottom of pole centered at origin).
+     */
+    private void drawTelevisionPole(GL2 gl) {
         gl.glPushMatrix();
-
         gl.glTranslated(12.5, 0, -1);
-
-        // Draw pole carrying screen (bottom of pole centered at origin)
-        gl.glPushMatrix();
         gl.glTranslated(0.5, 0, 0);
+        FrameProfiler.countDrawCall();
         glut.glutSolidCylinder(0.5, 10, 10, 10);
         gl.glPopMatrix();
-
+    }
+    
+    /**
+     * Draws both sides of the screen, with the television texture bound,
+     * of which the television fills the lower left televisionScale part.
+     */
+    private void drawTelevisionScreen(GL2 gl) {
         // Enable standard textures
-        gl.glUseProgram(0);
         gl.glEnable(GL.GL_TEXTURE_2D);
-        gl.glBindTexture(GL.GL_TEXTURE_2D, texID[0]);
-        gl.glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        gl.glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-        gl.glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP);
-        gl.glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP);
+        FrameProfiler.countStateChanges(2);
+
+        gl.glPushMatrix();
+        gl.glTranslated(12.5, 0, -1);
 
         // Draw screen side one
+        FrameProfiler.countDrawCall();
         gl.glPushMatrix();
             gl.glTranslated(1, 0, 11.5);
             gl.glScaled(0,8,3);
@@ -476,11 +879,11 @@ new Vector(3, 16, 1)
 
                 gl.glTexCoord2d(0, 0);
                 gl.glVertex3d(-0.5, -0.5, -0.5);
-                gl.glTexCoord2d(0, 1);
+                gl.glTexCoord2d(0, televisionScale);
                 gl.glVertex3d(-0.5, -0.5, 0.5);
-                gl.glTexCoord2d(1, 0);
+                gl.glTexCoord2d(televisionScale, 0);
                 gl.glVertex3d(-0.5, 0.5, -0.5);
-                gl.glTexCoord2d(1, 1);
+                gl.glTexCoord2d(televisionScale, televisionScale);
                 gl.glVertex3d(-0.5, 0.5, 0.5);
 
             gl.glEnd();
@@ -488,6 +891,7 @@ new Vector(3, 16, 1)
         gl.glPopMatrix();
 
         // Draw screen side two
+        FrameProfiler.countDrawCall();
         gl.glPushMatrix();
             gl.glTranslated(0,0,11.5);
             gl.glScaled(0,8,3);
@@ -496,28 +900,33 @@ new Vector(3, 16, 1)
 
                 gl.glTexCoord2d(0, 0);
                 gl.glVertex3d(-0.5, -0.5, -0.5);
-                gl.glTexCoord2d(0, 1);
+                gl.glTexCoord2d(0, televisionScale);
                 gl.glVertex3d(-0.5, -0.5, 0.5);
-                gl.glTexCoord2d(1, 0);
+                gl.glTexCoord2d(televisionScale, 0);
                 gl.glVertex3d(-0.5, 0.5, -0.5);
-                gl.glTexCoord2d(1, 1);
+                gl.glTexCoord2d(televisionScale, televisionScale);
                 gl.glVertex3d(-0.5, 0.5, 0.5);
 
             gl.glEnd();
 
         gl.glPopMatrix();
 
-        gl.glDisable(GL.GL_TEXTURE_2D);
+        gl.glPopMatrix();
 
-        // Draw "billboard" holding the screen sides
+        gl.glDisable(GL.GL_TEXTURE_2D);
+    }
+    
+    /**
+     * Draws the "billboard" holding the screen sides.
+     */
+    private void drawTelevisionBillboard(GL2 gl) {
         gl.glPushMatrix();
+        gl.glTranslated(12.5, 0, -1);
         gl.glTranslated(0.5, 0, 11.5);
         gl.glScaled(1, 8, 3);
+        FrameProfiler.countDrawCall();
         glut.glutSolidCube(1);
         gl.glPopMatrix();
-
-        gl.glPopMatrix();
-
     }
 
     public void drawAxisFrame() {
@@ -684,12 +1093,57 @@ new Vector(3, 16, 1)
     }
     
     
+    /**
+     * Runs races without rendering and prints their statistics, see
+     * {@link BulkSimulation}. Arguments: --simulate races [robots [laps
+     * [track [threads [variation [seed]]]]]].
+     */
+    private static void simulate(String args[]) {
+        int races = Integer.parseInt(args[1]);
+        int robots = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int laps = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        int trackNr = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+        double variation = args.length > 6 ? Double.parseDouble(args[6]) : 0.5;
+        long seed = args.length > 7 ? Long.parseLong(args[7]) : 0;
+        
+        BulkSimulation simulation = new BulkSimulation(createRaceTracks()[trackNr], robots, laps, variation, seed);
+        long start = System.nanoTime();
+        RaceStatistics statistics = simulation.run(races, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        statistics.print(System.out);
+        System.err.format("Simulated %d races in %.2f s on %d threads (%.0f times real time)%n",
+                races, seconds, threads, statistics.getTime() / seconds);
+    }
+    
     /**
      * Main program execution body, delegates to an instance of
      * the RobotRace implementation.
+     * 
+     * With the arguments --headless target [frames [fps [width height]]]
+     * the race is rendered offscreen to a directory of images or a raw video
+     * file instead of a window. Setting the system property robotrace.record
+     * records the window in the same way.
+     * 
+     * With the arguments --simulate races [robots [laps [track [threads
+     * [variation [seed]]]]]] races are run without rendering and their
+     * statistics printed instead, see {@link BulkSimulation}.
      */
     public static void main(String args[]) {
+        if (args.length >= 2 && args[0].equals("--simulate")) {
+            simulate(args);
+            return;
+        }
         RobotRace robotRace = new RobotRace();
-        robotRace.run();
+        if (args.length >= 2 && args[0].equals("--headless")) {
+            int frames = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+            double fps = args.length > 3 ? Double.parseDouble(args[3]) : 30;
+            int width = args.length > 5 ? Integer.parseInt(args[4]) : 1024;
+            int height = args.length > 5 ? Integer.parseInt(args[5]) : 768;
+            new HeadlessRenderer(robotRace, new File(args[1]), fps)
+                    .render(width, height, frames);
+        } else {
+            robotRace.run();
+        }
     }
 }
@@ -0,0 +1,333 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.awt.Color;
+import java.nio.FloatBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Draws all robots with a single instanced draw call of the baked robot
+ * mesh per level of detail.
+ *
+ * The placement, height, material and animation phase of every robot are
+ * written to an instance buffer once per frame. The robot vertex shader
+ * places each instance and animates its limbs from the bone palette, the
+ * time and the phase, so the work per robot on the CPU is a few floats.
+ *
+ * Every robot is drawn at the level of detail of its height on screen.
+ * A robot only switches back once it is clearly past the size it switched
+ * at, so that robots near a threshold do not keep popping between levels.
+ */
+class RobotRenderer {
+
+    /** Number of floats per instance: placement (4) and parameters (4). */
+    private final static int INSTANCE_SIZE = 8;
+
+    /** The baked robot mesh. */
+    private final Mesh mesh = new Mesh(2);
+
+    /** Name of the buffer object holding the instance data. */
+    private final int[] instanceBufferID = {0};
+
+    /** Instance data of the current frame. */
+    private FloatBuffer instances = Buffers.newDirectFloatBuffer(INSTANCE_SIZE * 16);
+
+    /** Attribute locations in the robot shader. */
+    private int partLocation;
+    private int placementLocation;
+    private int parametersLocation;
+
+    /** The robot shader. */
+    private ShaderProgram shader;
+
+    /** Whether per instance attributes are supported. */
+    private boolean instanced;
+
+    /** Bounds of a robot of height 3: horizontal radius and vertical reach. */
+    private final static double BOUNDS_RADIUS = 1.5;
+    private final static double BOUNDS_REACH = 3;
+
+    /** Heights on screen in pixels below which a robot uses the next level. */
+    private final static double[] LEVEL_SIZES = {120, 30};
+
+    /** Relative margin past a level size before a robot switches. */
+    private final static double HYSTERESIS = 0.2;
+
+    /** First vertex and vertex count of every level of detail. */
+    private final int[] levelFirst = new int[RobotMesh.LEVELS];
+    private final int[] levelCount = new int[RobotMesh.LEVELS];
+
+    /** First instance and instance count of every level this frame. */
+    private final int[] instanceFirst = new int[RobotMesh.LEVELS];
+    private final int[] instanceCount = new int[RobotMesh.LEVELS];
+
+    /** Level of every robot, by index, in every view it was drawn in. */
+    private final Map<Frustum, int[]> levels = new IdentityHashMap<>();
+
+    /** Visible robots, their levels and animation time of the submitted draw. */
+    private Robot[] visible = new Robot[16];
+    private int[] visibleLevels = new int[16];
+    private int visibleCount;
+    private float tAnim;
+
+    /** Whether the instances of the submitted draw are in the instance buffer. */
+    private boolean uploaded;
+
+    private final RenderQueue.Command command = this::drawSubmitted;
+
+    /**
+     * Bakes and uploads the robot mesh at every level of detail and sets
+     * up the constant uniforms of the given robot shader.
+     */
+    public void initialize(GL2 gl, ShaderProgram shader) {
+        Mesh.Builder builder = new Mesh.Builder(2);
+        for (int level = 0; level < RobotMesh.LEVELS; level++) {
+            levelFirst[level] = builder.getVertexCount();
+            RobotMesh.bake(builder, level);
+            levelCount[level] = builder.getVertexCount() - levelFirst[level];
+        }
+        mesh.upload(gl, builder);
+        gl.glGenBuffers(1, instanceBufferID, 0);
+
+        // Attribute divisors are core since OpenGL 3.3.
+        instanced = gl.isGL3bc();
+
+        setShader(gl, shader);
+    }
+
+    /**
+     * Draws with the given robot shader from now on, setting up its
+     * constant uniforms, such as after it was reloaded.
+     */
+    public void setShader(GL2 gl, ShaderProgram shader) {
+        this.shader = shader;
+        partLocation = shader.getAttributeLocation("part");
+        placementLocation = shader.getAttributeLocation("instancePlacement");
+        parametersLocation = shader.getAttributeLocation("instanceParameters");
+
+        Material[] materials = Material.values();
+        float[] diffuse = new float[4 * materials.length];
+        float[] shininess = new float[materials.length];
+        for (Material material : materials) {
+            System.arraycopy(material.diffuse, 0, diffuse, 4 * material.ordinal(), 4);
+            shininess[material.ordinal()] = material.shininess;
+        }
+
+        shader.useProgram(gl);
+        shader.setUniform(gl, "textures", 0);
+        shader.setUniform(gl, "materialDiffuse", diffuse);
+        shader.setUniform(gl, "materialShininess", shininess);
+        shader.setUniform(gl, "bones", RobotMesh.BONES);
+        gl.glUseProgram(0);
+    }
+
+    /**
+     * Submits the draw of those of the given robots in the given frustum at
+     * the given animation time, timed as the given pass. Nothing is
+     * submitted if no robot is visible. The levels of detail are kept per
+     * frustum, so every view should have its own.
+     */
+    public void submit(RenderQueue queue, Robot[] robots, float tAnim, Frustum frustum, String pass) {
+        if (visible.length < robots.length) {
+            visible = new Robot[robots.length];
+            visibleLevels = new int[robots.length];
+        }
+        int[] robotLevels = levels.get(frustum);
+        if (robotLevels == null || robotLevels.length != robots.length) {
+            robotLevels = new int[robots.length];
+            levels.put(frustum, robotLevels);
+        }
+        visibleCount = 0;
+        for (int i = 0; i < robots.length; i++) {
+            Robot robot = robots[i];
+            // The shader scales the robot and its offset above the track.
+            double scale = robot.height / 3.0;
+            double z = (robot.position.z + 1) * scale;
+            double reach = BOUNDS_REACH * scale;
+            if (frustum.intersectsBox(robot.position.x - BOUNDS_RADIUS, robot.position.y - BOUNDS_RADIUS,
+                    z - reach, robot.position.x + BOUNDS_RADIUS, robot.position.y + BOUNDS_RADIUS, z + reach)) {
+                double size = frustum.getPixelSize(robot.position.x, robot.position.y, z, robot.height);
+                robotLevels[i] = chooseLevel(robotLevels[i], size);
+                visibleLevels[visibleCount] = robotLevels[i];
+                visible[visibleCount++] = robot;
+            }
+        }
+        if (visibleCount == 0) {
+            return;
+        }
+        this.tAnim = tAnim;
+        uploaded = false;
+        queue.submit(RenderQueue.OPAQUE, shader, GL_TEXTURE_2D_ARRAY, Textures.array.getTextureObject(),
+                null, pass, command);
+    }
+
+    /**
+     * Returns the level of detail of a robot at the given level in the
+     * previous frame which is now the given number of pixels high.
+     */
+    static int chooseLevel(int level, double size) {
+        while (level > 0 && size > LEVEL_SIZES[level - 1] * (1 + HYSTERESIS)) {
+            level--;
+        }
+        while (level < LEVEL_SIZES.length && size < LEVEL_SIZES[level] * (1 - HYSTERESIS)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Draws the submitted robots. Their instances are uploaded once, so
+     * that views drawing the same submitted draw share that work.
+     */
+    private void drawSubmitted(GL2 gl) {
+        if (!uploaded) {
+            writeInstances(visible, visibleLevels, visibleCount);
+            uploadInstances(gl);
+            uploaded = true;
+        }
+        drawInstances(gl, visible, visibleCount, tAnim);
+    }
+
+    /**
+     * Draws the given robots at full detail. The robot shader must be in
+     * use, with the array of the textures bound to unit 0.
+     */
+    public void draw(GL2 gl, Robot[] robots, float tAnim) {
+        writeInstances(robots, null, robots.length);
+        uploadInstances(gl);
+        uploaded = false;
+        drawInstances(gl, robots, robots.length, tAnim);
+    }
+
+    /**
+     * Writes the instance data of the first count of the given robots,
+     * grouped by their levels of detail, or all at full detail if null.
+     */
+    private void writeInstances(Robot[] robots, int[] robotLevels, int count) {
+        if (instances.capacity() < count * INSTANCE_SIZE) {
+            instances = Buffers.newDirectFloatBuffer(count * INSTANCE_SIZE * 2);
+        }
+
+        // Group the instances by level, so that each level is one range.
+        instances.clear();
+        for (int level = 0; level < RobotMesh.LEVELS; level++) {
+            instanceFirst[level] = instances.position() / INSTANCE_SIZE;
+            for (int i = 0; i < count; i++) {
+                if ((robotLevels == null ? RobotMesh.FULL : robotLevels[i]) == level) {
+                    putInstance(robots[i]);
+                }
+            }
+            instanceCount[level] = instances.position() / INSTANCE_SIZE - instanceFirst[level];
+        }
+        instances.flip();
+    }
+
+    /**
+     * Uploads the written instances to the instance buffer, if used.
+     */
+    private void uploadInstances(GL2 gl) {
+        if (!instanced) {
+            return;
+        }
+        gl.glBindBuffer(GL_ARRAY_BUFFER, instanceBufferID[0]);
+        gl.glBufferData(GL_ARRAY_BUFFER, (long) instances.limit() * Buffers.SIZEOF_FLOAT, instances, GL_STREAM_DRAW);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Draws the written instances of the first count of the given robots.
+     */
+    private void drawInstances(GL2 gl, Robot[] robots, int count, float tAnim) {
+        drawOrientationLines(gl, robots, count);
+
+        shader.setUniform(gl, "time", tAnim);
+
+        mesh.bind(gl, partLocation);
+        if (instanced) {
+            gl.glBindBuffer(GL_ARRAY_BUFFER, instanceBufferID[0]);
+            for (int level = 0; level < RobotMesh.LEVELS; level++) {
+                if (instanceCount[level] == 0) {
+                    continue;
+                }
+                int offset = instanceFirst[level] * INSTANCE_SIZE;
+                enableInstanceAttribute(gl, placementLocation, offset);
+                enableInstanceAttribute(gl, parametersLocation, offset + 4);
+
+                FrameProfiler.countDrawCall();
+                gl.glDrawArraysInstanced(GL_TRIANGLES, levelFirst[level], levelCount[level], instanceCount[level]);
+            }
+
+            disableInstanceAttribute(gl, placementLocation);
+            disableInstanceAttribute(gl, parametersLocation);
+        } else {
+            // Fall back to one draw call per robot with constant attributes.
+            for (int level = 0; level < RobotMesh.LEVELS; level++) {
+                for (int i = instanceFirst[level]; i < instanceFirst[level] + instanceCount[level]; i++) {
+                    int offset = i * INSTANCE_SIZE;
+                    gl.glVertexAttrib4f(placementLocation, instances.get(offset), instances.get(offset + 1),
+                            instances.get(offset + 2), instances.get(offset + 3));
+                    gl.glVertexAttrib4f(parametersLocation, instances.get(offset + 4), instances.get(offset + 5),
+                            instances.get(offset + 6), instances.get(offset + 7));
+                    mesh.draw(gl, GL_TRIANGLES, levelFirst[level], levelCount[level]);
+                }
+            }
+        }
+        mesh.unbind(gl);
+    }
+
+    /**
+     * Writes the instance data of the given robot.
+     */
+    private void putInstance(Robot robot) {
+        instances.put((float) robot.position.x)
+                 .put((float) robot.position.y)
+                 .put((float) robot.position.z)
+                 .put((float) Math.atan2(robot.direction.y, robot.direction.x))
+                 .put(robot.height)
+                 .put(robot.getMaterial().ordinal())
+                 .put(robot.phase)
+                 .put(0);
+    }
+
+    /**
+     * Feeds four floats of every instance, starting at the given offset in
+     * floats, to the given attribute location, advancing once per instance.
+     */
+    private void enableInstanceAttribute(GL2 gl, int location, int offset) {
+        if (location < 0) {
+            return;
+        }
+        gl.glEnableVertexAttribArray(location);
+        gl.glVertexAttribPointer(location, 4, GL_FLOAT, false, INSTANCE_SIZE * Buffers.SIZEOF_FLOAT,
+                offset * Buffers.SIZEOF_FLOAT);
+        gl.getGL3bc().glVertexAttribDivisor(location, 1);
+    }
+
+    private void disableInstanceAttribute(GL2 gl, int location) {
+        if (location < 0) {
+            return;
+        }
+        gl.getGL3bc().glVertexAttribDivisor(location, 0);
+        gl.glDisableVertexAttribArray(location);
+    }
+
+    /**
+     * Draws a line in the running direction of every robot.
+     */
+    private void drawOrientationLines(GL2 gl, Robot[] robots, int count) {
+        gl.glColor3fv(Color.RED.getRGBColorComponents(null), 0);
+        gl.glLineWidth(2.5f);
+        FrameProfiler.countDrawCall();
+        gl.glBegin(GL_LINES);
+        for (int i = 0; i < count; i++) {
+            Robot robot = robots[i];
+            gl.glVertex3d(robot.position.x + robot.direction.x, robot.position.y + robot.direction.y, 2);
+            gl.glVertex3d(robot.position.x, robot.position.y, 2);
+        }
+        gl.glEnd();
+    }
+}
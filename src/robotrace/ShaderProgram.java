@@ -1,110 +1,469 @@
 package robotrace;
 
 import com.jogamp.opengl.util.glsl.ShaderUtil;
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
+import javax.media.opengl.GL4ES3;
 import javax.media.opengl.glu.GLU;
 
 /**
+ * A program is built in two steps, so that several programs can be
+ * compiled and linked before the status of any is queried, which lets
+ * drivers compile in parallel: {@link #compile} starts the work and
+ * {@link #finish} waits for it, reports the logs and looks up the
+ * uniforms. With a {@link DiskCache}, linked programs are stored as
+ * program binaries, keyed by the sources, the attribute bindings and the
+ * driver, and later loaded instead of compiled.
  *
  * @author s132054
  */
 public class ShaderProgram {
     
+    /** Line including another shader source, relative to the including one. */
+    private final static Pattern INCLUDE = Pattern.compile("(?m)^#include \"([^\"]+)\"\\s*$");
+    
+    /** Directory the shader sources are read from, null for the class path. */
+    private static File sourceDirectory;
+    
     private int programID = -1;
     
+    /** Resources of the vertex, geometry and fragment shader, null if absent. */
+    private final String vertexShader;
+    private final String geometryShader;
+    private final String fragmentShader;
+    
+    /** Generic vertex attributes bound to locations 1, 2, ... */
+    private String[] attributeBindings = {};
+    
+    /** Expanded sources of the vertex, geometry and fragment shader. */
+    private String[] sources;
+    
+    /** Shaders compiled from source, -1 if absent. */
+    private int v = -1;
+    private int g = -1;
+    private int f = -1;
+    
+    /** Key of the program binary in the cache, null if not cached. */
+    private String binaryKey;
+    
+    /** Whether the program was loaded from a cached binary. */
+    private boolean fromBinary;
+    
+    /** Active uniforms and attributes by name, found when linking. */
+    private final Map<String, Uniform> uniforms = new HashMap<>();
+    private final Map<String, Integer> attributes = new HashMap<>();
+    
     public int getProgramID() {
         return programID;
     }
     
+    /**
+     * Creates a program of the given shader resources, which is built by
+     * {@link #compile} and {@link #finish}.
+     */
+    public ShaderProgram(String vertexShader, String geometryShader, String fragmentShader) {
+        this.vertexShader = vertexShader;
+        this.geometryShader = geometryShader;
+        this.fragmentShader = fragmentShader;
+    }
+    
+    /**
+     * Creates and builds a program of the given shader resources, without
+     * a cache.
+     */
     public ShaderProgram(GL2 gl, GLU glu, String vertexShader, String geometryShader, String fragmentShader) {
+        this(vertexShader, geometryShader, fragmentShader);
+        compile(gl, glu, null);
+        finish(gl, glu, null);
+    }
+    
+    public void useProgram(GL2 gl) {
+        gl.glUseProgram(programID);
+    }
+    
+    /**
+     * Returns a new program of the same shaders and attribute bindings,
+     * which is built by {@link #compile} and {@link #finish}.
+     */
+    public ShaderProgram copy() {
+        ShaderProgram copy = new ShaderProgram(vertexShader, geometryShader, fragmentShader);
+        copy.attributeBindings = attributeBindings;
+        return copy;
+    }
+    
+    /**
+     * Deletes the program.
+     */
+    public void dispose(GL2 gl) {
+        if (programID != -1) {
+            gl.glDeleteProgram(programID);
+            programID = -1;
+        }
+    }
+    
+    /**
+     * Reads the shader sources from the given directory instead of the
+     * class path, for example the source tree while editing shaders.
+     */
+    public static void setSourceDirectory(File directory) {
+        sourceDirectory = directory;
+    }
+    
+    /**
+     * Returns the sources the program was built from.
+     */
+    public String[] getSources() {
+        return sources;
+    }
+    
+    /**
+     * Reads the current vertex, geometry and fragment shader sources, with
+     * their includes expanded, empty if absent.
+     */
+    public String[] readSources() throws IOException {
+        return new String[] {
+            vertexShader == null ? "" : readSource(vertexShader),
+            geometryShader == null ? "" : readSource(geometryShader),
+            fragmentShader == null ? "" : readSource(fragmentShader)
+        };
+    }
+    
+    /**
+     * Binds the given generic vertex attributes to fixed locations when the
+     * program is linked. Locations start at 1, so that they never alias
+     * gl_Vertex at location 0. Call before {@link #compile}.
+     */
+    public void bindAttributes(String... attributes) {
+        attributeBindings = attributes.clone();
+    }
+    
+    /**
+     * Starts building the program: loads its binary from the given cache,
+     * if present and the driver supports program binaries, or else
+     * compiles and links the sources. The cache may be null. Nothing is
+     * queried, so that the driver may still be working on return.
+     */
+    public void compile(GL2 gl, GLU glu, DiskCache cache) {
         try {
-            programID = getShaderProgram(gl, glu, vertexShader, geometryShader, fragmentShader);
-        } catch (Exception ex) {
+            compile(gl, glu, cache, readSources());
+        } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
     
-    public void useProgram(GL2 gl) {
-        gl.glUseProgram(programID);
+    /**
+     * Starts building the program from the given sources, as returned by
+     * {@link #readSources}.
+     */
+    public void compile(GL2 gl, GLU glu, DiskCache cache, String[] sources) {
+        try {
+            this.sources = sources;
+            programID = gl.glCreateProgram();
+            reportError(gl, glu, "create program");
+            
+            binaryKey = null;
+            fromBinary = false;
+            if (cache != null && supportsBinaries(gl)) {
+                binaryKey = DiskCache.hash(
+                        gl.glGetString(GL.GL_VENDOR).getBytes("UTF-8"),
+                        gl.glGetString(GL.GL_RENDERER).getBytes("UTF-8"),
+                        gl.glGetString(GL.GL_VERSION).getBytes("UTF-8"),
+                        String.join(",", attributeBindings).getBytes("UTF-8"),
+                        sources[0].getBytes("UTF-8"),
+                        sources[1].getBytes("UTF-8"),
+                        sources[2].getBytes("UTF-8")) + ".bin";
+                byte[] binary = cache.read(binaryKey);
+                if (binary != null && binary.length > 4) {
+                    ByteBuffer data = ByteBuffer.wrap(binary);
+                    int format = data.getInt();
+                    gl.glProgramBinary(programID, format, data.slice(), binary.length - 4);
+                    fromBinary = true;
+                    return;
+                }
+            }
+            
+            compileSources(gl, glu, sources);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
     }
     
-    private int getShaderProgram(GL2 gl, GLU glu, String vertexShader, String geometryShader, String fragmentShader) throws FileNotFoundException, IOException {
-        int shaderProgram = gl.glCreateProgramObjectARB();
-        reportError(gl, glu, "created shaders");
-        int v = createShader(gl, vertexShader,GL2.GL_VERTEX_SHADER);
+    /**
+     * Finishes building the program: waits for the link, reports the logs,
+     * stores the binary in the given cache and looks up the active
+     * uniforms and attributes. A cached binary that the driver rejects is
+     * replaced by compiling the sources. Returns whether the program
+     * linked.
+     */
+    public boolean finish(GL2 gl, GLU glu, DiskCache cache) {
+        if (programID == -1) {
+            return false;
+        }
+        int[] status = new int[1];
+        if (fromBinary) {
+            gl.glGetProgramiv(programID, GL2.GL_LINK_STATUS, status, 0);
+            if (status[0] == GL.GL_TRUE) {
+                introspect(gl);
+                return true;
+            }
+            // Outdated binary, for example after a driver update.
+            fromBinary = false;
+            compileSources(gl, glu, sources);
+        }
+        
+        if (v != -1) checkLogInfo(gl, v, vertexShader);
+        if (g != -1) checkLogInfo(gl, g, geometryShader);
+        if (f != -1) checkLogInfo(gl, f, fragmentShader);
+        
+        String infoLog = ShaderUtil.getProgramInfoLog(gl, programID);
+        if (!infoLog.isEmpty()) {
+            System.err.println("(EEE) " + infoLog);
+        }
+        
+        gl.glValidateProgram(programID);
+        
+        infoLog = ShaderUtil.getProgramInfoLog(gl, programID);
+        if (!infoLog.isEmpty()) {
+            System.err.println("(EEE) " + infoLog);
+        }
+        
+        gl.glGetProgramiv(programID, GL2.GL_LINK_STATUS, status, 0);
+        if (status[0] == GL.GL_TRUE && cache != null && binaryKey != null) {
+            storeBinary(gl, cache);
+        }
+        
+        // The linked program keeps what it needs of the shaders.
+        for (int shader : new int[] {v, g, f}) {
+            if (shader != -1) {
+                gl.glDetachShader(programID, shader);
+                gl.glDeleteShader(shader);
+            }
+        }
+        v = g = f = -1;
+        
+        introspect(gl);
+        return status[0] == GL.GL_TRUE;
+    }
+    
+    /**
+     * Returns whether the driver can save and load program binaries.
+     */
+    private static boolean supportsBinaries(GL2 gl) {
+        if (!gl.isExtensionAvailable("GL_ARB_get_program_binary")) {
+            return false;
+        }
+        int[] formats = new int[1];
+        gl.glGetIntegerv(GL2.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        return formats[0] > 0;
+    }
+    
+    /**
+     * Compiles the given vertex, geometry and fragment shader sources,
+     * empty if absent, and links them into the program.
+     */
+    private void compileSources(GL2 gl, GLU glu, String[] sources) {
+        v = createShader(gl, sources[0], GL2.GL_VERTEX_SHADER);
         reportError(gl, glu, "created vertex shader");
-        int g = createShader(gl, geometryShader,GL2.GL_GEOMETRY_SHADER_ARB);
+        g = createShader(gl, sources[1], GL2.GL_GEOMETRY_SHADER_ARB);
         reportError(gl, glu, "created geometry shader");
-        int f = createShader(gl, fragmentShader,GL2.GL_FRAGMENT_SHADER);
+        f = createShader(gl, sources[2], GL2.GL_FRAGMENT_SHADER);
         reportError(gl, glu, "created fragment shader");
              
         if (g!=-1) {
             // set input and output primitive types
-            gl.glProgramParameteriARB(shaderProgram, GL2.GL_GEOMETRY_INPUT_TYPE_ARB, GL.GL_TRIANGLES);
+            gl.glProgramParameteriARB(programID, GL2.GL_GEOMETRY_INPUT_TYPE_ARB, GL.GL_TRIANGLES);
             reportError(gl, glu, "configured geometry shader 1");
-            gl.glProgramParameteriARB(shaderProgram, GL2.GL_GEOMETRY_OUTPUT_TYPE_ARB, GL.GL_TRIANGLE_STRIP);
+            gl.glProgramParameteriARB(programID, GL2.GL_GEOMETRY_OUTPUT_TYPE_ARB, GL.GL_TRIANGLE_STRIP);
             reportError(gl, glu, "configured geometry shader 2");
             
             // set maximum number of outputted vertices
             int [] temp = new int[2];
             gl.glGetIntegerv(GL2.GL_MAX_GEOMETRY_OUTPUT_VERTICES_ARB,temp,0);
             reportError(gl, glu, "configured geometry shader 3");
-            gl.glProgramParameteriARB(shaderProgram,GL2.GL_GEOMETRY_VERTICES_OUT_ARB,temp[0]/2);
+            gl.glProgramParameteriARB(programID,GL2.GL_GEOMETRY_VERTICES_OUT_ARB,temp[0]/2);
             reportError(gl, glu, "configured geometry shader 4");
             reportError(gl, glu, "configured geometry shader");
         }
         
-        reportError(gl, glu, "create program");
-        if (v!=-1) gl.glAttachShader(shaderProgram, v);
-        if (g!=-1) gl.glAttachShader(shaderProgram, g);
-        if (f!=-1) gl.glAttachShader(shaderProgram, f);
+        if (v!=-1) gl.glAttachShader(programID, v);
+        if (g!=-1) gl.glAttachShader(programID, g);
+        if (f!=-1) gl.glAttachShader(programID, f);
         reportError(gl, glu, "attached shaders");
         
-        gl.glLinkProgram(shaderProgram);
+        for (int i = 0; i < attributeBindings.length; i++) {
+            gl.glBindAttribLocation(programID, i + 1, attributeBindings[i]);
+        }
+        if (binaryKey != null) {
+            gl.glProgramParameteriARB(programID, GL4ES3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL.GL_TRUE);
+        }
+        
+        gl.glLinkProgram(programID);
         reportError(gl, glu, "link program");
-        String infoLog = ShaderUtil.getProgramInfoLog(gl, shaderProgram);
-        if (!infoLog.isEmpty()) {
-            System.err.println("(EEE) " + infoLog);
+    }
+    
+    /**
+     * Stores the binary of the linked program in the given cache, preceded
+     * by its format.
+     */
+    private void storeBinary(GL2 gl, DiskCache cache) {
+        int[] length = new int[1];
+        gl.glGetProgramiv(programID, GL2.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
         }
+        ByteBuffer binary = ByteBuffer.allocateDirect(length[0]);
+        int[] format = new int[1];
+        gl.glGetProgramBinary(programID, length[0], length, 0, format, 0, binary);
         
-        gl.glValidateProgram(shaderProgram);
+        byte[] data = new byte[4 + length[0]];
+        ByteBuffer.wrap(data).putInt(format[0]);
+        binary.get(data, 4, length[0]);
+        cache.write(binaryKey, data);
+    }
+    
+    /**
+     * Looks up the active uniforms and attributes of the linked program.
+     * Array uniforms are stored under their name without "[0]". Uniforms
+     * in a uniform block have no location and are left out.
+     */
+    private void introspect(GL2 gl) {
+        uniforms.clear();
+        attributes.clear();
+        int[] count = new int[1];
+        int[] maxLength = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+        int[] length = new int[1];
         
-        infoLog = ShaderUtil.getProgramInfoLog(gl, shaderProgram);
-        if (!infoLog.isEmpty()) {
-            System.err.println("(EEE) " + infoLog);
+        gl.glGetProgramiv(programID, GL2.GL_ACTIVE_UNIFORMS, count, 0);
+        gl.glGetProgramiv(programID, GL2.GL_ACTIVE_UNIFORM_MAX_LENGTH, maxLength, 0);
+        byte[] name = new byte[Math.max(1, maxLength[0])];
+        for (int i = 0; i < count[0]; i++) {
+            gl.glGetActiveUniform(programID, i, name.length, length, 0, size, 0, type, 0, name, 0);
+            String uniformName = new String(name, 0, length[0]).replace("[0]", "");
+            int location = gl.glGetUniformLocation(programID, uniformName);
+            if (location != -1) {
+                uniforms.put(uniformName, new Uniform(location, type[0], size[0]));
+            }
+        }
+        
+        gl.glGetProgramiv(programID, GL2.GL_ACTIVE_ATTRIBUTES, count, 0);
+        gl.glGetProgramiv(programID, GL2.GL_ACTIVE_ATTRIBUTE_MAX_LENGTH, maxLength, 0);
+        name = new byte[Math.max(1, maxLength[0])];
+        for (int i = 0; i < count[0]; i++) {
+            gl.glGetActiveAttrib(programID, i, name.length, length, 0, size, 0, type, 0, name, 0);
+            String attributeName = new String(name, 0, length[0]);
+            attributes.put(attributeName, gl.glGetAttribLocation(programID, attributeName));
         }
-
-
-        return shaderProgram;
     }
     
-    public void setUniform(GL2 gl, String uniformName, float value) {
-        int uniform = gl.glGetUniformLocationARB(programID, uniformName);
-        if (uniform == -1) {
+    /**
+     * Returns the active uniform with the given name. A missing uniform is
+     * reported once and returned as a uniform that ignores its values, as
+     * the GLSL compiler removes uniforms that do not affect the output.
+     */
+    public Uniform getUniform(String uniformName) {
+        Uniform uniform = uniforms.get(uniformName);
+        if (uniform == null) {
             System.err.format("missing uniform \"%s\"\n", uniformName);
-        } else {
-            gl.glUniform1f(uniform, value);
+            uniform = new Uniform(-1, GL.GL_FLOAT, 1);
+            uniforms.put(uniformName, uniform);
         }
+        return uniform;
     }
     
-    private int createShader(GL2 gl2, String shader, int shaderType) throws IOException {
-        try {
-            if (shader==null) return -1;
-            int v = gl2.glCreateShader(shaderType);
-            String[] vscr = new String(Files.readAllBytes(Paths.get(ShaderProgram.class.getResource(shader).toURI()))).split("[\r]\n");
-            gl2.glShaderSourceARB(v, 1, vscr, null);
-            gl2.glCompileShader(v);
-            checkLogInfo(gl2, v, shader);
-            return v;
-        } catch (URISyntaxException ex) {
-            throw new IOException(ex);
+    /**
+     * Returns whether the program has an active uniform with the given name.
+     */
+    public boolean hasUniform(String uniformName) {
+        Uniform uniform = uniforms.get(uniformName);
+        return uniform != null && uniform.location != -1;
+    }
+    
+    /**
+     * Returns the location of the given attribute, -1 if it is not active.
+     */
+    public int getAttributeLocation(String attributeName) {
+        Integer location = attributes.get(attributeName);
+        return location == null ? -1 : location;
+    }
+    
+    /**
+     * Typed setters of a uniform. The program must be in use.
+     */
+    public void setUniform(GL2 gl, String uniformName, float value) {
+        getUniform(uniformName).set(gl, value);
+    }
+    
+    public void setUniform(GL2 gl, String uniformName, int value) {
+        getUniform(uniformName).set(gl, value);
+    }
+    
+    public void setUniform(GL2 gl, String uniformName, float x, float y, float z) {
+        getUniform(uniformName).set(gl, x, y, z);
+    }
+    
+    public void setUniform(GL2 gl, String uniformName, float x, float y, float z, float w) {
+        getUniform(uniformName).set(gl, x, y, z, w);
+    }
+    
+    public void setUniform(GL2 gl, String uniformName, float[] values) {
+        getUniform(uniformName).set(gl, values);
+    }
+    
+    /**
+     * Binds the uniform block with the given name to the given binding
+     * point. Returns false if the program has no such active block.
+     */
+    public boolean bindUniformBlock(GL2 gl, String blockName, int binding) {
+        int index = gl.glGetUniformBlockIndex(programID, blockName);
+        if (index == GL2.GL_INVALID_INDEX) {
+            return false;
+        }
+        gl.glUniformBlockBinding(programID, index, binding);
+        return true;
+    }
+    
+    private int createShader(GL2 gl2, String source, int shaderType) {
+        if (source.isEmpty()) return -1;
+        int shader = gl2.glCreateShader(shaderType);
+        gl2.glShaderSource(shader, 1, new String[] {source}, null);
+        gl2.glCompileShader(shader);
+        return shader;
+    }
+    
+    /**
+     * Reads the given shader source from the class path or the source
+     * directory, replacing every
+     * #include line by the source it names.
+     */
+    private static String readSource(String shader) throws IOException {
+        InputStream in = sourceDirectory == null
+                ? ShaderProgram.class.getResourceAsStream(shader)
+                : new FileInputStream(new File(sourceDirectory, shader));
+        if (in == null) {
+            throw new IOException("Missing shader " + shader);
         }
+        String source = new String(DiskCache.readAll(in), "UTF-8");
+        Matcher matcher = INCLUDE.matcher(source);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            String included = URI.create(shader).resolve(matcher.group(1)).normalize().getPath();
+            matcher.appendReplacement(result, Matcher.quoteReplacement(readSource(included)));
+        }
+        matcher.appendTail(result);
+        return result.toString();
     }
     
     public void reportError(GL2 gl, GLU glu, String prefix) {
@@ -122,4 +481,106 @@ public class ShaderProgram {
             System.err.format("\n\n(EEE) GLSL Validation of \"%s\" : %s\n\n", shaderId, infoLog);
         }
     }
+    
+    /**
+     * Active uniform of a program, remembering the last values set so that
+     * setting the same values again does not reach the GL.
+     */
+    static class Uniform {
+        
+        private final int location;
+        private final int type;
+        private final int size;
+        
+        /** Values last set, null if none were set since linking. */
+        private float[] values;
+        
+        Uniform(int location, int type, int size) {
+            this.location = location;
+            this.type = type;
+            this.size = size;
+        }
+        
+        /**
+         * Sets a float, or an int, bool or sampler uniform.
+         */
+        public void set(GL2 gl, float value) {
+            if (location == -1 || !changed(value, 0, 0, 0, 1)) {
+                return;
+            }
+            if (type == GL.GL_FLOAT) {
+                gl.glUniform1f(location, value);
+            } else {
+                gl.glUniform1i(location, (int) value);
+            }
+            FrameProfiler.countStateChanges(1);
+        }
+        
+        public void set(GL2 gl, int value) {
+            set(gl, (float) value);
+        }
+        
+        public void set(GL2 gl, float x, float y, float z) {
+            if (location == -1 || !changed(x, y, z, 0, 3)) {
+                return;
+            }
+            gl.glUniform3f(location, x, y, z);
+            FrameProfiler.countStateChanges(1);
+        }
+        
+        public void set(GL2 gl, float x, float y, float z, float w) {
+            if (location == -1 || !changed(x, y, z, w, 4)) {
+                return;
+            }
+            gl.glUniform4f(location, x, y, z, w);
+            FrameProfiler.countStateChanges(1);
+        }
+        
+        /**
+         * Sets a float, vec3, vec4 or mat4 uniform, or an array of them,
+         * from consecutive values. Matrices are in column major order.
+         */
+        public void set(GL2 gl, float[] values) {
+            if (location == -1 || Arrays.equals(this.values, values)) {
+                return;
+            }
+            this.values = values.clone();
+            if (type == GL2.GL_FLOAT_MAT4) {
+                gl.glUniformMatrix4fv(location, Math.min(size, values.length / 16), false, values, 0);
+            } else if (type == GL2.GL_FLOAT_VEC4) {
+                gl.glUniform4fv(location, Math.min(size, values.length / 4), values, 0);
+            } else if (type == GL2.GL_FLOAT_VEC3) {
+                gl.glUniform3fv(location, Math.min(size, values.length / 3), values, 0);
+            } else {
+                gl.glUniform1fv(location, Math.min(size, values.length), values, 0);
+            }
+            FrameProfiler.countStateChanges(1);
+        }
+        
+        /**
+         * Remembers the given values and returns whether they differ from
+         * the values last set.
+         */
+        private boolean changed(float x, float y, float z, float w, int count) {
+            if (values != null && values.length == count
+                    && values[0] == x
+                    && (count < 2 || values[1] == y)
+                    && (count < 3 || values[2] == z)
+                    && (count < 4 || values[3] == w)) {
+                return false;
+            }
+            if (values == null || values.length != count) {
+                values = new float[count];
+            }
+            values[0] = x;
+            if (count > 1) {
+                values[1] = y;
+                values[2] = z;
+            }
+            if (count > 3) {
+                values[3] = w;
+            }
+            return true;
+        }
+    }
 }
@@ -1,6 +1,8 @@
-
 package robotrace;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import javax.media.opengl.GL2;
 import javax.media.opengl.glu.GLU;
 
@@ -15,11 +17,197 @@ public class ShaderPrograms {
     public static ShaderProgram trackShader;
     public static ShaderProgram terrainShader;
     
+    /** All of the above. */
+    private static ShaderProgram[] shaders;
+    
+    /** Names of the above, the directories of their sources. */
+    private final static String[] NAMES = {"Default", "Robot", "Track", "Terrain"};
+    
+    /** Cache of linked programs. */
+    private static DiskCache cache;
+    
+    /** Watcher of the shader sources, null unless reloading. */
+    private static ShaderWatcher watcher;
+    
+    /** Programs rebuilt from changed sources, by index in shaders, if any. */
+    private static ShaderProgram[] pending;
+    
+    /** Binding point of the Frame uniform block, see Frame.glsl. */
+    final static int FRAME_BINDING = 0;
+    
+    /** Members of the Frame uniform block, one vec4 each, in order. */
+    private final static String[] FRAME_MEMBERS = {
+        "eyePosition", "lightPosition", "lightAmbient", "lightDiffuse", "lightSpecular"
+    };
+    
+    /** Colors of the light, the defaults of GL_LIGHT0. */
+    private final static float[] LIGHT_AMBIENT = {0f, 0f, 0f, 1f};
+    private final static float[] LIGHT_DIFFUSE = {1f, 1f, 1f, 1f};
+    private final static float[] LIGHT_SPECULAR = {1f, 1f, 1f, 1f};
+    
+    /** Values of the Frame block, uploaded as a buffer if supported. */
+    private static UniformBuffer frame;
+    
+    /** Whether the Frame block is a uniform buffer, not plain uniforms. */
+    private static boolean frameBuffer;
+    
+    /** Scratch storage for setting the Frame members as plain uniforms. */
+    private final static float[] member = new float[4];
+    
+    /**
+     * Builds all shader programs. When the system property
+     * robotrace.shaders names the source directory, such as src/robotrace,
+     * the sources are read from there and reloaded on change, see
+     * {@link #update}.
+     */
     public static void setupShaders(GL2 gl, GLU glu) {
-        defaultShader = new ShaderProgram(gl, glu, "shaderPrograms/Default/vertex.glsl", null, "shaderPrograms/Default/fragment.glsl");
-        robotShader = new ShaderProgram(gl, glu, "shaderPrograms/Robot/vertex.glsl", null, "shaderPrograms/Robot/fragment.glsl");
-        trackShader = new ShaderProgram(gl, glu, "shaderPrograms/Track/vertex.glsl", null, "shaderPrograms/Track/fragment.glsl");
-        terrainShader = new ShaderProgram(gl, glu, "shaderPrograms/Terrain/vertex.glsl", null, "shaderPrograms/Terrain/fragment.glsl");
+        String directory = System.getProperty("robotrace.shaders");
+        if (directory != null) {
+            ShaderProgram.setSourceDirectory(new File(directory));
+            try {
+                watcher = new ShaderWatcher(new File(directory, "shaderPrograms"));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        
+        defaultShader = create(NAMES[0]);
+        robotShader = create(NAMES[1]);
+        robotShader.bindAttributes("part", "instancePlacement", "instanceParameters");
+        trackShader = create(NAMES[2]);
+        trackShader.bindAttributes("layer");
+        terrainShader = create(NAMES[3]);
+        shaders = new ShaderProgram[] {defaultShader, robotShader, trackShader, terrainShader};
+        
+        // Start all programs before waiting for any, so that the driver
+        // can build them in parallel.
+        cache = new DiskCache("shaders");
+        for (ShaderProgram program : shaders) {
+            program.compile(gl, glu, cache);
+        }
+        for (ShaderProgram program : shaders) {
+            program.finish(gl, glu, cache);
+        }
+        
+        // Frame.glsl declares a block when the GLSL compiler supports it.
+        // Programs that do not include it, Default and Terrain, have no
+        // block to bind.
+        frame = new UniformBuffer(FRAME_BINDING, 4 * FRAME_MEMBERS.length);
+        frameBuffer = gl.isExtensionAvailable("GL_ARB_uniform_buffer_object");
+        if (frameBuffer) {
+            frame.initialize(gl);
+            for (ShaderProgram program : getShaders()) {
+                program.bindUniformBlock(gl, "Frame", FRAME_BINDING);
+            }
+        }
+    }
+    
+    /**
+     * Returns the program of the vertex and fragment shader in the
+     * directory of the given name.
+     */
+    private static ShaderProgram create(String name) {
+        return new ShaderProgram("shaderPrograms/" + name + "/vertex.glsl", null,
+                "shaderPrograms/" + name + "/fragment.glsl");
+    }
+    
+    /**
+     * Replaces the programs whose sources changed, called at the start of
+     * a frame. A change reported by the watcher starts building the
+     * changed programs; the next frame finishes them, giving the driver a
+     * frame to build them, and swaps in those that linked. A program that
+     * fails keeps the previous one. Returns whether any program was
+     * replaced, so that users of their uniforms can set them again.
+     */
+    public static boolean update(GL2 gl, GLU glu) {
+        if (watcher == null) {
+            return false;
+        }
+        
+        boolean replaced = false;
+        if (pending != null) {
+            for (int i = 0; i < shaders.length; i++) {
+                if (pending[i] == null) {
+                    continue;
+                }
+                if (pending[i].finish(gl, glu, cache)) {
+                    if (frameBuffer) {
+                        pending[i].bindUniformBlock(gl, "Frame", FRAME_BINDING);
+                    }
+                    shaders[i].dispose(gl);
+                    shaders[i] = pending[i];
+                    replaced = true;
+                    System.err.println("Reloaded " + NAMES[i] + " shader");
+                } else {
+                    System.err.println("(EEE) " + NAMES[i] + " shader failed, keeping the previous one");
+                    pending[i].dispose(gl);
+                }
+            }
+            pending = null;
+            defaultShader = shaders[0];
+            robotShader = shaders[1];
+            trackShader = shaders[2];
+            terrainShader = shaders[3];
+        }
+        
+        if (watcher.poll()) {
+            pending = new ShaderProgram[shaders.length];
+            for (int i = 0; i < shaders.length; i++) {
+                try {
+                    String[] sources = shaders[i].readSources();
+                    if (!Arrays.equals(sources, shaders[i].getSources())) {
+                        pending[i] = shaders[i].copy();
+                        pending[i].compile(gl, glu, cache, sources);
+                    }
+                } catch (IOException ex) {
+                    // Possibly half written, the watcher reports the rest.
+                    System.err.println("(EEE) " + NAMES[i] + " shader: " + ex);
+                }
+            }
+        }
+        return replaced;
+    }
+    
+    /**
+     * Returns all shader programs.
+     */
+    public static ShaderProgram[] getShaders() {
+        return shaders;
+    }
+    
+    /**
+     * Sets the camera and light data of the Frame block shared by the lit
+     * programs, those including Frame.glsl: the eye in world coordinates
+     * and the light position in view coordinates. Unchanged values are
+     * not uploaded again.
+     */
+    public static void setFrame(GL2 gl, Vec3 eye, float[] lightPosition) {
+        frame.put(0, (float) eye.x, (float) eye.y, (float) eye.z, 1f);
+        frame.put(4, lightPosition);
+        frame.put(8, LIGHT_AMBIENT);
+        frame.put(12, LIGHT_DIFFUSE);
+        frame.put(16, LIGHT_SPECULAR);
+        if (frameBuffer) {
+            frame.upload(gl);
+            return;
+        }
+        
+        // Without uniform buffers, every lit program has its own copy.
+        for (ShaderProgram program : getShaders()) {
+            boolean used = false;
+            for (int i = 0; i < FRAME_MEMBERS.length; i++) {
+                if (!program.hasUniform(FRAME_MEMBERS[i])) {
+                    continue;
+                }
+                if (!used) {
+                    program.useProgram(gl);
+                    used = true;
+                }
+                frame.get(4 * i, member);
+                program.getUniform(FRAME_MEMBERS[i]).set(gl, member[0], member[1], member[2], member[3]);
+            }
+        }
+        gl.glUseProgram(0);
     }
     
 }
@@ -0,0 +1,76 @@
+package robotrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a directory of shader sources, and its subdirectories, on a
+ * background thread and raises a flag when any file in it changes.
+ *
+ * The GL thread polls {@link #poll} once per frame and only then reads the
+ * sources again, so the watcher never touches GL or shader programs.
+ * Events are debounced, since editors often write a file in several steps.
+ */
+class ShaderWatcher {
+
+    /** Time to wait for more events before reporting a change, in ms. */
+    private final static long DEBOUNCE = 100;
+
+    private final WatchService service;
+
+    /** Whether a file changed since the last poll. */
+    private final AtomicBoolean changed = new AtomicBoolean();
+
+    /**
+     * Starts watching the given directory.
+     */
+    public ShaderWatcher(File directory) throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Thread thread = new Thread(this::watch, "shader watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns whether a file changed since the last call.
+     */
+    public boolean poll() {
+        return changed.getAndSet(false);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                // Collect the rest of the burst.
+                do {
+                    key.pollEvents();
+                    key.reset();
+                } while ((key = service.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null);
+                changed.set(true);
+            }
+        } catch (InterruptedException ex) {
+            // Stop watching.
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package robotrace;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a race simulation at a fixed time step, independent of the frame
+ * rate of the renderer.
+ *
+ * The simulation is advanced either by a background thread following the
+ * wall clock ({@link #start()}), or explicitly with {@link #advanceTo(double)}
+ * for a deterministic clock. After every tick an immutable snapshot is
+ * published; the renderer interpolates between the last two snapshots, so
+ * it never touches the simulation state itself.
+ */
+class SimulationLoop {
+
+    /** Number of simulation ticks per second. */
+    public final static int TICK_RATE = 60;
+
+    /** Duration of one tick in seconds. */
+    private final static double TICK = 1.0 / TICK_RATE;
+
+    /** The simulated race, only touched while holding the lock of this loop. */
+    private final RaceSimulation simulation;
+
+    /** Number of ticks run since the start of the race. */
+    private long ticks;
+
+    /** The last two published snapshots, replaced together. */
+    private volatile RaceSnapshot[] snapshots;
+
+    /** Wall clock time of the start of the race, in nanoseconds. */
+    private volatile long startTime = System.nanoTime();
+
+    /** Thread driving the simulation, null when driven explicitly. */
+    private ScheduledExecutorService executor;
+
+    /** Records every tick of the race, null when not recording. */
+    private RaceRecorder recorder;
+
+    /**
+     * Creates a loop driving the given simulation.
+     */
+    public SimulationLoop(RaceSimulation simulation) {
+        this.simulation = simulation;
+        restart();
+    }
+
+    /**
+     * Starts a background thread that advances the simulation to the wall
+     * clock time at the tick rate.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "simulation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                advanceTo(elapsed());
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }, 0, 1000000000L / TICK_RATE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the background thread, if any.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the wall clock time in seconds since the start of the race.
+     */
+    public double elapsed() {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    /**
+     * Records every tick of the race from now on with the given recorder,
+     * until the race restarts, which closes the recording.
+     */
+    public synchronized void setRecorder(RaceRecorder recorder) {
+        this.recorder = recorder;
+        recorder.record(snapshots[1]);
+    }
+
+    /**
+     * Restarts the race from time zero.
+     */
+    public synchronized void restart() {
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+        simulation.restart();
+        ticks = 0;
+        startTime = System.nanoTime();
+        RaceSnapshot snapshot = simulation.snapshot(0);
+        snapshots = new RaceSnapshot[] {snapshot, snapshot};
+    }
+
+    /**
+     * Moves the race to another track.
+     */
+    public synchronized void setTrack(RaceTrack track) {
+        simulation.setTrack(track);
+    }
+
+    /**
+     * Runs all ticks up to the given simulation time.
+     */
+    public synchronized void advanceTo(double target) {
+        RaceSnapshot previous = snapshots[1];
+        RaceSnapshot current = previous;
+
+        // Compare tick counts rather than summed times, which would drift.
+        long targetTicks = (long) Math.floor(target * TICK_RATE + 1e-6);
+        while (ticks < targetTicks) {
+            ticks++;
+            simulation.step(TICK);
+            previous = current;
+            current = simulation.snapshot(ticks * TICK);
+            if (recorder != null) {
+                recorder.record(current);
+            }
+        }
+        if (current != snapshots[1]) {
+            snapshots = new RaceSnapshot[] {previous, current};
+        }
+    }
+
+    /**
+     * Returns the state of the race at the given time, interpolated between
+     * the last two snapshots. Rendering lags one tick behind the simulation,
+     * so that there is always a later snapshot to interpolate towards.
+     */
+    public RaceSnapshot sample(double time) {
+        RaceSnapshot[] pair = snapshots;
+        double span = pair[1].getTime() - pair[0].getTime();
+        if (span <= 0) {
+            return pair[1];
+        }
+        double alpha = (time - TICK - pair[0].getTime()) / span;
+        return RaceSnapshot.interpolate(pair[0], pair[1], Math.max(0, Math.min(1, alpha)));
+    }
+}
@@ -0,0 +1,187 @@
+package robotrace;
+
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Decides when the television is rendered and how large, so that the
+ * second pass over the scene is only paid for when the screen is seen.
+ *
+ * The television is skipped while it is outside the view, hidden behind
+ * other geometry or only a few pixels large, and otherwise refreshed every
+ * interval-th frame, and at once when it comes back into sight. Hiding is
+ * found with an occlusion query on the billboard drawn after the opaque
+ * geometry; its result is read a frame later, without waiting for it.
+ * The television is rendered into the lower left corner of its texture,
+ * at the power of two size nearest above its width on screen.
+ */
+class TelevisionBudget {
+
+    /** Box around the billboard, which holds both sides of the screen. */
+    private final static double MIN_X = 12.5, MIN_Y = -4, MIN_Z = 9;
+    private final static double MAX_X = 13.5, MAX_Y = 4, MAX_Z = 12;
+
+    /** Width of the screen, to which the size of the texture is matched. */
+    private final static double SCREEN_WIDTH = MAX_Y - MIN_Y;
+
+    /** Distance the query box stands out from the billboard, so it is not hidden by it. */
+    private final static double QUERY_MARGIN = 0.05;
+
+    /** Width on screen in pixels below which the television is not rendered. */
+    private final static double MIN_PIXELS = 8;
+
+    /** Smallest size rendered, in texels. */
+    private final static int MIN_SIZE = 32;
+
+    /** Size of the texture, the largest size rendered. */
+    private final int maxSize;
+
+    /** Number of frames between two refreshes while visible. */
+    private final int interval;
+
+    /** Occlusion query on the billboard, and whether its result is due. */
+    private final int[] queryID = {0};
+    private boolean queryPending;
+
+    /** Whether the billboard was hidden when last queried. */
+    private boolean occluded;
+
+    /** Whether the texture is outdated because it was not rendered. */
+    private boolean stale = true;
+
+    private int frame;
+
+    /** Size of the television rendered last, in texels. */
+    private int size;
+
+    /** Scratch storage for the query results. */
+    private final int[] result = new int[1];
+
+    /**
+     * Creates a budget for a texture of maxSize texels square, refreshing a
+     * visible television every interval-th frame.
+     */
+    public TelevisionBudget(int maxSize, int interval) {
+        this.maxSize = maxSize;
+        this.interval = Math.max(1, interval);
+        this.size = maxSize;
+    }
+
+    /**
+     * Creates the occlusion query.
+     */
+    public void initialize(GL2 gl) {
+        gl.glGenQueries(1, queryID, 0);
+    }
+
+    /**
+     * Returns whether to render the television this frame, given what the
+     * camera saw in the last frame, and chooses its size.
+     */
+    public boolean update(GL2 gl, Frustum view) {
+        frame++;
+        if (queryPending) {
+            gl.glGetQueryObjectiv(queryID[0], GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if (result[0] != 0) {
+                gl.glGetQueryObjectiv(queryID[0], GL_QUERY_RESULT, result, 0);
+                occluded = result[0] == 0;
+                queryPending = false;
+            }
+        }
+
+        if (!view.intersectsBox(MIN_X, MIN_Y, MIN_Z, MAX_X, MAX_Y, MAX_Z)) {
+            // Not queried while outside, test again once inside.
+            occluded = false;
+            stale = true;
+            return false;
+        }
+        double pixels = view.getPixelSize((MIN_X + MAX_X) / 2, (MIN_Y + MAX_Y) / 2, (MIN_Z + MAX_Z) / 2,
+                SCREEN_WIDTH);
+        if (occluded || pixels < MIN_PIXELS) {
+            stale = true;
+            return false;
+        }
+        if (!stale && frame % interval != 0) {
+            return false;
+        }
+
+        size = MIN_SIZE;
+        while (size < maxSize && size < pixels) {
+            size *= 2;
+        }
+        stale = false;
+        return true;
+    }
+
+    /**
+     * Returns the size of the television rendered last, in texels.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Renders the television at the full size of the texture from now on,
+     * for example while recording it.
+     */
+    public void setFullSize() {
+        size = maxSize;
+    }
+
+    /**
+     * Draws the billboard into the occlusion query, without changing color
+     * or depth. Call after the opaque geometry of the view is drawn, with
+     * the fixed function pipeline.
+     */
+    public void drawQuery(GL2 gl) {
+        if (queryPending) {
+            // The previous result is not in yet, keep it.
+            return;
+        }
+        FrameProfiler.countStateChanges(2);
+        FrameProfiler.countDrawCall();
+        double x0 = MIN_X - QUERY_MARGIN, y0 = MIN_Y - QUERY_MARGIN, z0 = MIN_Z - QUERY_MARGIN;
+        double x1 = MAX_X + QUERY_MARGIN, y1 = MAX_Y + QUERY_MARGIN, z1 = MAX_Z + QUERY_MARGIN;
+        gl.glColorMask(false, false, false, false);
+        gl.glDepthMask(false);
+        gl.glBeginQuery(GL_SAMPLES_PASSED, queryID[0]);
+        gl.glBegin(GL_QUADS);
+            // Front and back
+            gl.glVertex3d(x1, y0, z0);
+            gl.glVertex3d(x1, y1, z0);
+            gl.glVertex3d(x1, y1, z1);
+            gl.glVertex3d(x1, y0, z1);
+            gl.glVertex3d(x0, y0, z0);
+            gl.glVertex3d(x0, y0, z1);
+            gl.glVertex3d(x0, y1, z1);
+            gl.glVertex3d(x0, y1, z0);
+            // Top and bottom
+            gl.glVertex3d(x0, y0, z1);
+            gl.glVertex3d(x1, y0, z1);
+            gl.glVertex3d(x1, y1, z1);
+            gl.glVertex3d(x0, y1, z1);
+            gl.glVertex3d(x0, y0, z0);
+            gl.glVertex3d(x0, y1, z0);
+            gl.glVertex3d(x1, y1, z0);
+            gl.glVertex3d(x1, y0, z0);
+            // Ends
+            gl.glVertex3d(x0, y0, z0);
+            gl.glVertex3d(x1, y0, z0);
+            gl.glVertex3d(x1, y0, z1);
+            gl.glVertex3d(x0, y0, z1);
+            gl.glVertex3d(x0, y1, z0);
+            gl.glVertex3d(x0, y1, z1);
+            gl.glVertex3d(x1, y1, z1);
+            gl.glVertex3d(x1, y1, z0);
+        gl.glEnd();
+        gl.glEndQuery(GL_SAMPLES_PASSED);
+        gl.glDepthMask(true);
+        gl.glColorMask(true, true, true, true);
+        queryPending = true;
+    }
+
+    public void dispose(GL2 gl) {
+        gl.glDeleteQueries(1, queryID, 0);
+    }
+}
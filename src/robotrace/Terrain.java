@@ -1,59 +1,166 @@
 package robotrace;
 
-import com.jogamp.opengl.util.gl2.GLUT;
 import javax.media.opengl.GL2;
-import javax.media.opengl.glu.GLU;
 
 /**
  * Represents the terrain, to be implemented according to the Assignments.
+ *
+ * The terrain is one regular grid, split into square chunks, stored in a
+ * single vertex buffer with the heights baked in. All chunks share one
+ * index buffer holding the triangles of every level of detail: level l
+ * uses every 2^l-th vertex of the chunk. Each frame a chunk is drawn at a
+ * level chosen by its distance to the eye. Skirts hanging down from the
+ * chunk borders hide the cracks between chunks of different levels.
  */
 class Terrain {
 
-    private final int fragments = 20;
-    private final int minX = -20;
-    private final int maxX = 20;
-    private final int minY = -20;
-    private final int maxY = 20;    
-    
-    private float xInterval;
-    private float yInterval;
-    
+    /** Default half size of the terrain. */
+    private final static double EXTENT = 40;
+
+    /** Default number of grid cells per unit. */
+    private final static int RESOLUTION = 4;
+
+    /** Default number of grid cells along the side of a chunk. */
+    private final static int CHUNK_CELLS = 32;
+
+    /** Distance from the eye up to which chunks are drawn at full detail. */
+    private final static double LOD_DISTANCE = 10;
+
+    /** Depth of the skirts below the chunk borders. */
+    private final static float SKIRT_DEPTH = 1;
+
+    /** Largest absolute height of the terrain, see {@link #height}. */
+    private final static double MAX_HEIGHT = 1;
+
+    private final double minX;
+    private final double maxX;
+    private final double minY;
+    private final double maxY;
+
+    /** Number of cells along the side of a chunk and of one cell. */
+    private final int chunkCells;
+    private final double cellSize;
+
+    /** Number of chunks along the x and y axes. */
+    private final int chunksX;
+    private final int chunksY;
+
+    /** Number of levels of detail. */
+    private final int levels;
+
+    /** Range in the index buffer of every level of detail. */
+    private final int[] levelFirst;
+    private final int[] levelCount;
+
+    /** Number of vertices of one chunk, grid and skirts. */
+    private final int chunkVertices;
+
+    /** The grid, built on the first draw. */
+    private final Mesh mesh = new Mesh();
+    private boolean built;
+
+    /** Eye position and frustum of the submitted draw. */
+    private Vec3 eye;
+    private Frustum frustum;
+
+    /** Draws of the grid and of the translucent water surface. */
+    private final RenderQueue.Command gridCommand = this::drawGrid;
+    private final RenderQueue.Command waterCommand = this::drawWater;
+
     private GlobalState gs;
-    
+
     public Terrain(GlobalState gs) {
-        xInterval = (maxX - minX) / fragments;
-        yInterval = (maxY - minY) / fragments;
-        
+        this(gs, EXTENT, RESOLUTION, CHUNK_CELLS);
+    }
+
+    /**
+     * Creates a terrain covering [-extent, extent] in x and y, with the
+     * given number of grid cells per unit, split into chunks of chunkCells
+     * cells per side. chunkCells must be a power of two.
+     */
+    public Terrain(GlobalState gs, double extent, int resolution, int chunkCells) {
+        if (Integer.bitCount(chunkCells) != 1) {
+            throw new IllegalArgumentException("Chunk cells must be a power of two: " + chunkCells);
+        }
         this.gs = gs;
+        this.chunkCells = chunkCells;
+        this.cellSize = 1.0 / resolution;
+
+        double chunkSize = chunkCells * cellSize;
+        chunksX = chunksY = (int) Math.ceil(2 * extent / chunkSize);
+        minX = minY = -chunksX * chunkSize / 2;
+        maxX = maxY = chunksX * chunkSize / 2;
+
+        levels = Integer.numberOfTrailingZeros(chunkCells) + 1;
+        levelFirst = new int[levels];
+        levelCount = new int[levels];
+        chunkVertices = (chunkCells + 1) * (chunkCells + 1) + 4 * (chunkCells + 1);
+    }
+
+    /**
+     * Returns the height of the terrain at (x, y).
+     */
+    public static double height(double x, double y) {
+        return 0.6 * Math.cos(0.3 * x + 0.2 * y) + 0.4 * Math.cos(x - 0.5 * y);
     }
 
     /**
-     * Draws the terrain.
+     * Submits the draws of the terrain as seen from the given eye position
+     * in the given frustum with the given shader, timed as the given pass.
+     * The eye and frustum are read when the queue is flushed.
      */
-    public void draw(GL2 gl, GLU glu, GLUT glut) {
-
-        
-        int xStart = minX;
-        int yStart = minY;
-        for(int fragment = 0; fragment < fragments; fragment++) {
-            for(int fragment2 = 0; fragment2 < fragments; fragment2++) {
-                gl.glBegin(GL2.GL_TRIANGLE_STRIP);
-                    gl.glTexCoord2d(0, 0);
-                    gl.glVertex3d(xStart, yStart, 0);
-                    gl.glTexCoord2d(0, 1);
-                    gl.glVertex3d(xStart, yStart + yInterval, 0);
-                    gl.glTexCoord2d(1, 0);
-                    gl.glVertex3d(xStart + xInterval, yStart, 0);
-                    gl.glTexCoord2d(1, 1);
-                    gl.glVertex3d(xStart + xInterval, yStart + yInterval, 0);
-                gl.glEnd();
-                xStart += xInterval;
+    public void submit(RenderQueue queue, ShaderProgram shader, Vec3 eye, Frustum frustum, String pass) {
+        this.eye = eye;
+        this.frustum = frustum;
+        queue.submit(RenderQueue.OPAQUE, shader, RenderQueue.NO_TEXTURE, null, pass, gridCommand);
+        if (frustum.intersectsBox(minX, minY, 0, maxX, maxY, 0)) {
+            queue.submit(RenderQueue.TRANSLUCENT, null, RenderQueue.NO_TEXTURE, null, pass, waterCommand);
+        }
+    }
+
+    /**
+     * Draws the chunks of the grid in the frustum at their level of detail.
+     */
+    private void drawGrid(GL2 gl) {
+        if (!built) {
+            build(gl);
+            built = true;
+        }
+
+        double chunkSize = chunkCells * cellSize;
+        mesh.bind(gl);
+        for (int j = 0; j < chunksY; j++) {
+            for (int i = 0; i < chunksX; i++) {
+                // Distance from the eye to the bounding box of the chunk.
+                double x0 = minX + i * chunkSize;
+                double y0 = minY + j * chunkSize;
+                if (!frustum.intersectsBox(x0, y0, -MAX_HEIGHT - SKIRT_DEPTH,
+                        x0 + chunkSize, y0 + chunkSize, MAX_HEIGHT)) {
+                    continue;
+                }
+                double dx = Math.max(0, Math.max(x0 - eye.x, eye.x - x0 - chunkSize));
+                double dy = Math.max(0, Math.max(y0 - eye.y, eye.y - y0 - chunkSize));
+                double dz = Math.max(0, Math.abs(eye.z) - 1);
+                double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                int level = 0;
+                while (level < levels - 1 && distance > LOD_DISTANCE * (1 << level)) {
+                    level++;
+                }
+
+                mesh.setBaseVertex(gl, (j * chunksX + i) * chunkVertices);
+                mesh.drawElements(gl, GL2.GL_TRIANGLES, levelFirst[level], levelCount[level]);
             }
-            xStart = minX;
-            yStart += yInterval;
         }
-            
-        gl.glUseProgram(0);
+        mesh.unbind(gl);
+    }
+
+    /**
+     * Draws the translucent water surface at height zero.
+     */
+    private void drawWater(GL2 gl) {
+        FrameProfiler.countStateChanges(2);
+        FrameProfiler.countDrawCall();
         gl.glEnable(GL2.GL_BLEND);
         gl.glBlendFunc(GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA);
         gl.glPushMatrix();
@@ -67,5 +174,115 @@ class Terrain {
         gl.glPopMatrix();
         gl.glDisable(GL2.GL_BLEND);
     }
-    
-}
\ No newline at end of file
+
+    /**
+     * Releases the buffers of the terrain.
+     */
+    public void dispose(GL2 gl) {
+        mesh.dispose(gl);
+        built = false;
+    }
+
+    /**
+     * Bakes the vertices of all chunks and the indices of all levels.
+     */
+    private void build(GL2 gl) {
+        int side = chunkCells + 1;
+        double chunkSize = chunkCells * cellSize;
+        Mesh.Builder builder = new Mesh.Builder(0);
+
+        for (int j = 0; j < chunksY; j++) {
+            for (int i = 0; i < chunksX; i++) {
+                double x0 = minX + i * chunkSize;
+                double y0 = minY + j * chunkSize;
+
+                for (int v = 0; v < side; v++) {
+                    for (int u = 0; u < side; u++) {
+                        addVertex(builder, x0 + u * cellSize, y0 + v * cellSize, 0);
+                    }
+                }
+
+                // Skirts along the bottom, right, top and left borders.
+                for (int k = 0; k < side; k++) {
+                    addVertex(builder, x0 + k * cellSize, y0, SKIRT_DEPTH);
+                }
+                for (int k = 0; k < side; k++) {
+                    addVertex(builder, x0 + chunkSize, y0 + k * cellSize, SKIRT_DEPTH);
+                }
+                for (int k = 0; k < side; k++) {
+                    addVertex(builder, x0 + k * cellSize, y0 + chunkSize, SKIRT_DEPTH);
+                }
+                for (int k = 0; k < side; k++) {
+                    addVertex(builder, x0, y0 + k * cellSize, SKIRT_DEPTH);
+                }
+            }
+        }
+        mesh.upload(gl, builder);
+
+        int total = 0;
+        for (int level = 0; level < levels; level++) {
+            int cells = chunkCells >> level;
+            total += 6 * (cells * cells + 4 * cells);
+        }
+        int[] indices = new int[total];
+        int n = 0;
+        for (int level = 0; level < levels; level++) {
+            int step = 1 << level;
+            levelFirst[level] = n;
+
+            for (int v = 0; v < chunkCells; v += step) {
+                for (int u = 0; u < chunkCells; u += step) {
+                    int a = v * side + u;
+                    int b = a + step;
+                    int c = a + step * side;
+                    int d = c + step;
+                    n = putQuad(indices, n, a, b, d, c);
+                }
+            }
+
+            int skirt = side * side;
+            int last = chunkCells * side;
+            for (int k = 0; k < chunkCells; k += step) {
+                // Bottom: grid row 0, facing -y.
+                n = putQuad(indices, n, skirt + k, skirt + k + step, k + step, k);
+                // Right: grid column chunkCells, facing +x.
+                n = putQuad(indices, n, skirt + side + k, skirt + side + k + step,
+                        (k + step) * side + chunkCells, k * side + chunkCells);
+                // Top: grid row chunkCells, facing +y.
+                n = putQuad(indices, n, skirt + 2 * side + k + step, skirt + 2 * side + k,
+                        last + k, last + k + step);
+                // Left: grid column 0, facing -x.
+                n = putQuad(indices, n, skirt + 3 * side + k + step, skirt + 3 * side + k,
+                        k * side, (k + step) * side);
+            }
+
+            levelCount[level] = n - levelFirst[level];
+        }
+        mesh.uploadIndices(gl, indices);
+    }
+
+    /**
+     * Adds the terrain vertex at (x, y), lowered by depth.
+     */
+    private void addVertex(Mesh.Builder builder, double x, double y, float depth) {
+        // The normal follows from the partial derivatives of the height.
+        double dx = -0.18 * Math.sin(0.3 * x + 0.2 * y) - 0.4 * Math.sin(x - 0.5 * y);
+        double dy = -0.12 * Math.sin(0.3 * x + 0.2 * y) + 0.2 * Math.sin(x - 0.5 * y);
+        double l = Math.sqrt(dx * dx + dy * dy + 1);
+        builder.vertex(x, y, height(x, y) - depth, -dx / l, -dy / l, 1 / l,
+                (x - minX) / (maxX - minX), (y - minY) / (maxY - minY));
+    }
+
+    /**
+     * Writes the two counter clockwise triangles of the quad a, b, c, d.
+     */
+    private static int putQuad(int[] indices, int n, int a, int b, int c, int d) {
+        indices[n++] = a;
+        indices[n++] = b;
+        indices[n++] = c;
+        indices[n++] = a;
+        indices[n++] = c;
+        indices[n++] = d;
+        return n;
+    }
+}
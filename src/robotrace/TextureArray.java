@@ -0,0 +1,121 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Array texture holding several images of the same size, one per layer,
+ * so that geometry using different images can be drawn with one texture
+ * bound. Shaders sample it with texture2DArray and the layer baked into
+ * the mesh.
+ *
+ * Images are scaled to the size of a layer when added. Rows are stored in
+ * image order, top first, like TextureIO stores them, so that texture
+ * coordinates keep their meaning. Mipmaps are generated once, on upload.
+ */
+class TextureArray {
+
+    /** Width and height of a layer. */
+    private final int size;
+
+    /** Texels of the layers added so far, as RGBA bytes. */
+    private final List<byte[]> layers = new ArrayList<>();
+
+    private final int[] textureID = {0};
+
+    /**
+     * Creates an array texture with layers of size by size texels.
+     */
+    public TextureArray(int size) {
+        this.size = size;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Adds the given image as the next layer and returns its index.
+     */
+    public int add(BufferedImage image) {
+        return add(toLayer(image, size));
+    }
+
+    /**
+     * Adds the given texels, size by size RGBA bytes in the order of
+     * {@link #toLayer}, as the next layer and returns its index.
+     */
+    public int add(byte[] texels) {
+        if (texels.length != size * size * 4) {
+            throw new IllegalArgumentException("Layer of " + texels.length + " bytes, expected " + size * size * 4);
+        }
+        layers.add(texels);
+        return layers.size() - 1;
+    }
+
+    /**
+     * Scales the given image to size by size texels and returns them as
+     * RGBA bytes, top row first.
+     */
+    public static byte[] toLayer(BufferedImage image, int size) {
+        BufferedImage layer = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = layer.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, size, size, null);
+        g.dispose();
+
+        int[] argb = layer.getRGB(0, 0, size, size, null, 0, size);
+        byte[] texels = new byte[argb.length * 4];
+        for (int i = 0; i < argb.length; i++) {
+            texels[4 * i] = (byte) (argb[i] >> 16);
+            texels[4 * i + 1] = (byte) (argb[i] >> 8);
+            texels[4 * i + 2] = (byte) argb[i];
+            texels[4 * i + 3] = (byte) (argb[i] >> 24);
+        }
+        return texels;
+    }
+
+    /**
+     * Uploads the layers and generates their mipmaps.
+     */
+    public void upload(GL2 gl) {
+        ByteBuffer data = Buffers.newDirectByteBuffer(size * size * 4 * layers.size());
+        for (byte[] layer : layers) {
+            data.put(layer);
+        }
+        data.flip();
+
+        if (textureID[0] == 0) {
+            gl.glGenTextures(1, textureID, 0);
+        }
+        gl.glBindTexture(GL_TEXTURE_2D_ARRAY, textureID[0]);
+        gl.glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA8, size, size, layers.size(), 0,
+                GL_RGBA, GL_UNSIGNED_BYTE, data);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        gl.glGenerateMipmap(GL_TEXTURE_2D_ARRAY);
+        gl.glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+    }
+
+    /**
+     * Returns the name of the texture, 0 before the upload.
+     */
+    public int getTextureObject() {
+        return textureID[0];
+    }
+
+    public void dispose(GL2 gl) {
+        gl.glDeleteTextures(1, textureID, 0);
+        textureID[0] = 0;
+    }
+}
@@ -0,0 +1,82 @@
+package robotrace;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+/**
+ * Decodes textures into layers of a {@link TextureArray} on a pool of
+ * worker threads, leaving only the upload to the GL thread.
+ *
+ * Decoded layers are kept in a {@link DiskCache}, keyed by a hash of the
+ * image file and the layer size, so that later starts read the texels
+ * instead of decoding and scaling the images again.
+ */
+class TextureLoader {
+
+    /** Version of the format of the cached layers, part of every key. */
+    private final static int CACHE_VERSION = 1;
+
+    /** Cache of decoded layers. */
+    private final DiskCache cache = new DiskCache("textures");
+
+    /**
+     * Decodes the given texture files, resources next to this class, into
+     * layers of size by size texels, in parallel. The layers are returned
+     * in the order of the files; a file that fails to load gives a black
+     * layer.
+     */
+    public byte[][] load(final String[] files, final int size) {
+        int threads = Math.max(1, Math.min(files.length, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "texture loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<byte[]>> layers = new ArrayList<>();
+            for (final String file : files) {
+                layers.add(pool.submit(() -> load(file, size)));
+            }
+            byte[][] result = new byte[files.length][];
+            for (int i = 0; i < files.length; i++) {
+                try {
+                    result[i] = layers.get(i).get();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    result[i] = new byte[size * size * 4];
+                }
+            }
+            return result;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns the layer of the given texture file, from the cache if
+     * present, else decoded and then cached.
+     */
+    private byte[] load(String file, int size) throws IOException {
+        InputStream in = TextureLoader.class.getResourceAsStream(file);
+        if (in == null) {
+            throw new IOException("Missing texture " + file);
+        }
+        byte[] encoded = DiskCache.readAll(in);
+        String key = DiskCache.hash((CACHE_VERSION + ":" + size).getBytes("UTF-8"), encoded) + ".rgba";
+        byte[] layer = cache.read(key);
+        if (layer != null && layer.length == size * size * 4) {
+            return layer;
+        }
+
+        layer = TextureArray.toLayer(ImageIO.read(new ByteArrayInputStream(encoded)), size);
+        cache.write(key, layer);
+        return layer;
+    }
+}
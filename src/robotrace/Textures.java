@@ -1,7 +1,6 @@
 package robotrace;
 
-import com.jogamp.opengl.util.texture.Texture;
-import com.jogamp.opengl.util.texture.TextureIO;
+import javax.media.opengl.GL2;
 
 /**
  *
@@ -9,35 +8,40 @@ import com.jogamp.opengl.util.texture.TextureIO;
  */
 public class Textures {
     
-    public static Texture head = null;
-    public static Texture torso = null;
-    public static Texture legs = null;
-    public static Texture track = null;
-    public static Texture brick = null;
-    public static Texture pole = null;
+    /** Layers of the textures in the array texture. */
+    public final static int HEAD = 0;
+    public final static int TORSO = 1;
+    public final static int LEGS = 2;
+    public final static int TRACK = 3;
+    public final static int BRICK = 4;
+    public final static int POLE = 5;
+    
+    /** Width and height every texture is scaled to. */
+    private final static int LAYER_SIZE = 512;
+    
+    /** All textures, one per layer. */
+    public static TextureArray array = null;
         
-    public static void loadTextures() {
-        head = loadTexture("textures/bert_head.jpg");
-        torso = loadTexture("textures/suit_torso.jpg");
-        legs = loadTexture("textures/suit_pants.jpg");
-        track = loadTexture("textures/track_run.jpg");
-        brick = loadTexture("textures/brick.jpg");
-        pole = loadTexture("textures/screen_pole.jpg");
-    }
+    /** Texture files, in the order of their layers. */
+    private final static String[] FILES = {
+        "textures/bert_head.jpg",
+        "textures/suit_torso.jpg",
+        "textures/suit_pants.jpg",
+        "textures/track_run.jpg",
+        "textures/brick.jpg",
+        "textures/screen_pole.jpg"
+    };
     
     /**
-    * Try to load a texture from the given file. The file
-    * should be located in the same folder as RobotRace.java.
-    */
-    private static Texture loadTexture(String file) {
-        Texture result = null;
-
-        try {
-            // Try to load from local folder.
-            result = TextureIO.newTexture(Textures.class.getResource(file), false, null);
-        } catch(Exception e1) {
-            e1.printStackTrace();
-        }       
-        return result;
+     * Loads the textures into the array texture and uploads it. The files
+     * are decoded in parallel, or read from the cache of decoded textures,
+     * see {@link TextureLoader}; only the upload happens on the GL thread.
+     */
+    public static void loadTextures(GL2 gl) {
+        array = new TextureArray(LAYER_SIZE);
+        for (byte[] layer : new TextureLoader().load(FILES, LAYER_SIZE)) {
+            array.add(layer);
+        }
+        array.upload(gl);
     }
 }
@@ -0,0 +1,103 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import javax.media.opengl.GL2;
+
+import static javax.media.opengl.GL2.*;
+
+/**
+ * Uniform buffer object holding the values of a uniform block with the
+ * std140 layout, bound to a fixed binding point.
+ *
+ * The values are written into a float array and only uploaded when they
+ * differ from the last upload.
+ */
+class UniformBuffer {
+
+    /** Binding point the buffer is bound to. */
+    private final int binding;
+
+    /** Values in std140 layout, as floats. */
+    private final float[] values;
+
+    /** Values of the last upload. */
+    private final float[] uploaded;
+
+    private final FloatBuffer data;
+
+    private final int[] bufferID = {0};
+
+    /**
+     * Creates a buffer of the given number of floats for the given binding
+     * point. The buffer is created by {@link #initialize}.
+     */
+    public UniformBuffer(int binding, int size) {
+        this.binding = binding;
+        values = new float[size];
+        uploaded = new float[size];
+        data = Buffers.newDirectFloatBuffer(size);
+    }
+
+    /**
+     * Creates the buffer and binds it to its binding point.
+     */
+    public void initialize(GL2 gl) {
+        gl.glGenBuffers(1, bufferID, 0);
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, bufferID[0]);
+        gl.glBufferData(GL_UNIFORM_BUFFER, (long) values.length * Buffers.SIZEOF_FLOAT, null, GL_DYNAMIC_DRAW);
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        gl.glBindBufferBase(GL_UNIFORM_BUFFER, binding, bufferID[0]);
+        // Make sure the first upload happens.
+        Arrays.fill(uploaded, Float.NaN);
+    }
+
+    public int getBinding() {
+        return binding;
+    }
+
+    /**
+     * Writes a vec4 at the given offset in floats.
+     */
+    public void put(int offset, float x, float y, float z, float w) {
+        values[offset] = x;
+        values[offset + 1] = y;
+        values[offset + 2] = z;
+        values[offset + 3] = w;
+    }
+
+    /**
+     * Writes the given values at the given offset in floats.
+     */
+    public void put(int offset, float[] values) {
+        System.arraycopy(values, 0, this.values, offset, values.length);
+    }
+
+    /**
+     * Copies the values at the given offset in floats into the given array.
+     */
+    public void get(int offset, float[] out) {
+        System.arraycopy(values, offset, out, 0, out.length);
+    }
+
+    /**
+     * Uploads the values if they changed since the last upload.
+     */
+    public void upload(GL2 gl) {
+        if (Arrays.equals(values, uploaded)) {
+            return;
+        }
+        System.arraycopy(values, 0, uploaded, 0, values.length);
+        data.clear();
+        data.put(values).flip();
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, bufferID[0]);
+        gl.glBufferSubData(GL_UNIFORM_BUFFER, 0, (long) values.length * Buffers.SIZEOF_FLOAT, data);
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        FrameProfiler.countStateChanges(1);
+    }
+
+    public void dispose(GL2 gl) {
+        gl.glDeleteBuffers(1, bufferID, 0);
+    }
+}
@@ -0,0 +1,100 @@
+package robotrace;
+
+/**
+ * Mutable 3D vector, the in place counterpart of {@link Vector}.
+ *
+ * Operations modify this vector and return it, so they can be chained
+ * without allocating. Hot paths keep a few of these as scratch storage;
+ * the immutable Vector is only used where values cross an API boundary.
+ */
+class Vec3 {
+
+    public double x;
+    public double y;
+    public double z;
+
+    /**
+     * Creates the zero vector.
+     */
+    public Vec3() {
+    }
+
+    public Vec3(double x, double y, double z) {
+        set(x, y, z);
+    }
+
+    public Vec3(Vector v) {
+        set(v);
+    }
+
+    public Vec3 set(double x, double y, double z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
+    public Vec3 set(Vec3 v) {
+        return set(v.x, v.y, v.z);
+    }
+
+    public Vec3 set(Vector v) {
+        return set(v.x(), v.y(), v.z());
+    }
+
+    public Vec3 add(Vec3 v) {
+        return set(x + v.x, y + v.y, z + v.z);
+    }
+
+    /**
+     * Adds s times v to this vector.
+     */
+    public Vec3 addScaled(Vec3 v, double s) {
+        return set(x + s * v.x, y + s * v.y, z + s * v.z);
+    }
+
+    public Vec3 subtract(Vec3 v) {
+        return set(x - v.x, y - v.y, z - v.z);
+    }
+
+    public Vec3 scale(double s) {
+        return set(s * x, s * y, s * z);
+    }
+
+    /**
+     * Sets this vector to the cross product a x b. Either may be this
+     * vector.
+     */
+    public Vec3 cross(Vec3 a, Vec3 b) {
+        return set(a.y * b.z - a.z * b.y,
+                   a.z * b.x - a.x * b.z,
+                   a.x * b.y - a.y * b.x);
+    }
+
+    public double dot(Vec3 v) {
+        return x * v.x + y * v.y + z * v.z;
+    }
+
+    public double length() {
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Scales this vector to unit length.
+     */
+    public Vec3 normalize() {
+        return scale(1 / length());
+    }
+
+    /**
+     * Returns an immutable copy of this vector.
+     */
+    public Vector toVector() {
+        return new Vector(x, y, z);
+    }
+
+    @Override
+    public String toString() {
+        return "(" + x + ", " + y + ", " + z + ")";
+    }
+}
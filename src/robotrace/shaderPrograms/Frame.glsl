@@ -0,0 +1,19 @@
+// Camera and light data of the current frame, shared by the lit programs
+// that include this file (Robot and Track) and set by
+// ShaderPrograms.setFrame. Where uniform buffers are supported this is one
+// block, filled once per frame, else plain uniforms of each program.
+#extension GL_ARB_uniform_buffer_object : enable
+#ifdef GL_ARB_uniform_buffer_object
+layout(std140) uniform Frame {
+#define FRAME_UNIFORM
+#else
+#define FRAME_UNIFORM uniform
+#endif
+	FRAME_UNIFORM vec4 eyePosition;   // camera position in world coordinates
+	FRAME_UNIFORM vec4 lightPosition; // light position in view coordinates
+	FRAME_UNIFORM vec4 lightAmbient;
+	FRAME_UNIFORM vec4 lightDiffuse;
+	FRAME_UNIFORM vec4 lightSpecular;
+#ifdef GL_ARB_uniform_buffer_object
+};
+#endif
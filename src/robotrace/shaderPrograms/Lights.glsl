@@ -0,0 +1,44 @@
+// Point lights binned into tiles of the screen by LightManager. Per light
+// lightData holds its position in view coordinates and radius, then its
+// color; per tile lightTiles holds a texel with its number of lights, then
+// texels of four light indices each.
+uniform sampler2D lightData;
+uniform sampler2D lightTiles;
+
+// Origin of the viewport in pixels (xy) and size of lightTiles in tiles (zw).
+uniform vec4 lightGrid;
+
+const float LIGHT_TILE_SIZE = 32.0;
+const float LIGHT_TILE_ROWS = 5.0;
+const float MAX_LIGHTS = 256.0;
+const int MAX_TILE_LIGHTS = 16;
+
+// Diffuse light of the lights of the tile of this fragment at P with normal
+// N, in view coordinates, fading out quadratically towards their radius.
+vec3 pointLights(vec3 P, vec3 N) {
+	vec2 tile = floor((gl_FragCoord.xy - lightGrid.xy) / LIGHT_TILE_SIZE);
+	float u = (tile.x + 0.5) / lightGrid.z;
+	float row = tile.y * LIGHT_TILE_ROWS;
+	float height = lightGrid.w * LIGHT_TILE_ROWS;
+	int count = int(texture2D(lightTiles, vec2(u, (row + 0.5) / height)).x);
+
+	vec3 result = vec3(0.0);
+	for (int k = 0; k < MAX_TILE_LIGHTS; k++) {
+		if (k >= count) {
+			break;
+		}
+		int texel = k / 4;
+		vec4 indices = texture2D(lightTiles, vec2(u, (row + 1.5 + float(texel)) / height));
+		// Component k modulo 4 of the indices.
+		float index = dot(indices, vec4(equal(vec4(float(k - 4 * texel)), vec4(0.0, 1.0, 2.0, 3.0))));
+		float v = (index + 0.5) / MAX_LIGHTS;
+		vec4 light = texture2D(lightData, vec2(0.25, v));
+		vec3 color = texture2D(lightData, vec2(0.75, v)).rgb;
+
+		vec3 D = light.xyz - P;
+		float d = length(D);
+		float falloff = clamp(1.0 - d / light.w, 0.0, 1.0);
+		result += color * falloff * falloff * max(dot(N, D / d), 0.0);
+	}
+	return result;
+}
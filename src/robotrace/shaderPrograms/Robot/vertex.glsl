@@ -1,12 +1,61 @@
 #version 120
+#include "../Frame.glsl"
+
 uniform bool ambient, diffuse, specular;
+
+// Bone (x) and texture (y) of the robot part this vertex belongs to.
+attribute vec2 part;
+
+// Per robot: position on the track (xyz) and heading in radians (w).
+attribute vec4 instancePlacement;
+
+// Per robot: height (x), material (y) and animation phase in seconds (z).
+attribute vec4 instanceParameters;
+
+// Animation time in seconds.
+uniform float time;
+
+// Bone palette: pivot (xyz) and rotation in radians per unit of limb swing (w)
+// of the body, left arm, right arm, left leg and right leg.
+uniform vec4 bones[5];
+
+// Diffuse color and shininess of each material.
+uniform vec4 materialDiffuse[4];
+uniform float materialShininess[4];
+
 varying vec3 P, N, E, V, R;
+varying vec4 materialColor;
+varying float materialExponent;
+varying float layer;
 vec3 L;
 
+// Rotation around the y axis, like glRotate(angle, 0, 1, 0).
+vec3 rotateY(vec3 v, float angle) {
+	float c = cos(angle);
+	float s = sin(angle);
+	return vec3(c * v.x + s * v.z, v.y, -s * v.x + c * v.z);
+}
+
+// Rotation around the z axis, like glRotate(angle, 0, 0, 1).
+vec3 rotateZ(vec3 v, float angle) {
+	float c = cos(angle);
+	float s = sin(angle);
+	return vec3(c * v.x - s * v.y, s * v.x + c * v.y, v.z);
+}
+
 void main() {
-	// pick up light LIGHT0 and material properties from GL
-	gl_LightSourceParameters light = gl_LightSource[0];
-	gl_MaterialParameters mat = gl_FrontMaterial;
+	// swing the limb around the pivot of its bone, then orient the robot along its heading
+	vec4 bone = bones[int(part.x)];
+	float angle = bone.w * sin((time + instanceParameters.z + 1.0) * 10.0);
+	vec3 position = rotateZ(bone.xyz + rotateY(gl_Vertex.xyz - bone.xyz, angle), instancePlacement.w);
+	vec3 normal = rotateZ(rotateY(gl_Normal, angle), instancePlacement.w);
+
+	// move the robot onto the track and scale it to its height, which for normals
+	// means dividing by the scale factor
+	float scale = instanceParameters.x / 3.0;
+	position = (position + instancePlacement.xyz + vec3(0.0, 0.0, 1.0)) * vec3(1.0, 1.0, scale);
+	normal = normal / vec3(1.0, 1.0, scale);
+	vec4 vertex = vec4(position, 1.0);
 
 	// there are 4 spaces object, world, view, clip
 
@@ -18,10 +67,10 @@ void main() {
 
 	// normalize returns a vector with the same direction as its parameter, v , but with length 1.
 	// this needs to be the case if we want to use it as direction vector, or else the length changes
-	N = normalize(gl_NormalMatrix * gl_Normal); // transform normal vector to view space
-	P = vec3(gl_ModelViewMatrix * gl_Vertex); // compute vertex position in 3-D view coordinates
+	N = normalize(gl_NormalMatrix * normal); // transform normal vector to view space
+	P = vec3(gl_ModelViewMatrix * vertex); // compute vertex position in 3-D view coordinates
 
-	L = normalize(light.position.xyz - P); // vector towards light source
+	L = normalize(lightPosition.xyz - P); // vector towards light source
 
 	E = vec3(0); // position of camera in View space
 	V = normalize(E - P); // direction towards viewer
@@ -30,8 +79,13 @@ void main() {
 	// R = 2 * (N*L)N - L
 	R = normalize(2.0 * dot(N, L)*N - L);  // reflected light vector
 
+	// material of this robot and texture of this part
+	int material = int(instanceParameters.y);
+	materialColor = materialDiffuse[material];
+	materialExponent = materialShininess[material];
+	layer = part.y;
+
 	// output of vertex shader
 	gl_TexCoord[0] = gl_MultiTexCoord0;
-	// gl_FrontColor = shading(P, N, light, mat);
-	gl_Position = gl_ModelViewProjectionMatrix * gl_Vertex;
-}
\ No newline at end of file
+	gl_Position = gl_ModelViewProjectionMatrix * vertex;
+}
@@ -1,12 +1,16 @@
+#version 120
+#include "../Frame.glsl"
+
 uniform bool ambient, diffuse, specular;
+
+// Layer of the texture in the array of textures.
+attribute float layer;
+
 varying vec3 P, N, E, V, R;
+varying float textureLayer;
 vec3 L;
 
 void main() {
-	// pick up light LIGHT0 and material properties from GL
-	gl_LightSourceParameters light = gl_LightSource[0];
-	gl_MaterialParameters mat = gl_FrontMaterial;
-
 	// there are 4 spaces object, world, view, clip
 
 	// gl_ModelViewMatrix is pre-defined uniform variable set from GL_MODELVIEW matrix
@@ -20,7 +24,7 @@ void main() {
 	N = normalize(gl_NormalMatrix * gl_Normal); // transform normal vector to view space
 	P = vec3(gl_ModelViewMatrix * gl_Vertex); // compute vertex position in 3-D view coordinates
 
-	L = normalize(light.position.xyz - P); // vector towards light source
+	L = normalize(lightPosition.xyz - P); // vector towards light source
 
 	E = vec3(0); // position of camera in View space
 	V = normalize(E - P); // direction towards viewer
@@ -31,6 +35,6 @@ void main() {
 
 	// output of vertex shader
 	gl_TexCoord[0] = gl_MultiTexCoord0;
-	// gl_FrontColor = shading(P, N, light, mat);
+	textureLayer = layer;
 	gl_Position = gl_ModelViewProjectionMatrix * gl_Vertex;
 }
\ No newline at end of file